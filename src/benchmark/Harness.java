@@ -0,0 +1,153 @@
+package benchmark;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * Minimal benchmark harness: runs an operation repeatedly and reports the
+ * time and the allocations per operation, together with the time spent in
+ * garbage collection during the measurement.
+ *
+ * Every measurement is preceded by warm-up iterations, so the operation is
+ * compiled before it is measured. An iteration calls the operation until
+ * a minimum time has passed. The results of the operation are consumed, so
+ * the JIT cannot remove the work as dead code.
+ *
+ */
+final class Harness {
+
+	/**
+	 * The work to measure. A single call may perform several operations,
+	 * for instance activate a number of frames.
+	 */
+	interface Operation {
+
+		/**
+		 * @return A result of the work, which is consumed.
+		 */
+		Object run() throws Exception;
+	}
+
+	private final int warmupIterations;
+	private final int iterations;
+	private final long iterationNanos;
+
+	// Consumed results, read once so the writes cannot be removed.
+	private int sink;
+
+	/**
+	 * @param warmupIterations	Iterations run before measuring.
+	 * @param iterations		Iterations measured.
+	 * @param iterationMillis	Minimum duration of an iteration.
+	 */
+	Harness(int warmupIterations, int iterations, long iterationMillis) {
+		this.warmupIterations = warmupIterations;
+		this.iterations = iterations;
+		this.iterationNanos = iterationMillis * 1000000;
+	}
+
+	/**
+	 * Prints the header of the result table.
+	 */
+	void printHeader() {
+		System.out.println(String.format("%-28s %-22s %14s %10s %14s %12s %6s",
+				"stage", "parameters", "ns/op", "+-%", "bytes/op",
+				"alloc MB/s", "gc ms"));
+	}
+
+	/**
+	 * Measures the operation and prints a row of the result table.
+	 *
+	 * @param stage					Name of the measured stage.
+	 * @param parameters			Parameters of the measurement.
+	 * @param operationsPerCall		Number of operations one call performs.
+	 * @param operation				The work to measure.
+	 * @throws Exception	If the operation fails.
+	 */
+	void run(String stage, String parameters, int operationsPerCall,
+			Operation operation) throws Exception {
+		for (int i = 0; i < this.warmupIterations; i++) {
+			this.iterate(operation);
+		}
+
+		double[] nanosPerOperation = new double[this.iterations];
+		long totalNanos = 0;
+		long totalBytes = 0;
+		long totalOperations = 0;
+		long gcStart = gcMillis();
+		for (int i = 0; i < this.iterations; i++) {
+			long[] result = this.iterate(operation);
+			long operations = result[2] * operationsPerCall;
+			nanosPerOperation[i] = (double) result[0] / operations;
+			totalNanos += result[0];
+			totalBytes += result[1];
+			totalOperations += operations;
+		}
+		long gc = gcMillis() - gcStart;
+
+		double mean = (double) totalNanos / totalOperations;
+		double variance = 0;
+		for (double value : nanosPerOperation) {
+			variance += (value - mean) * (value - mean);
+		}
+		double deviation = Math.sqrt(variance / this.iterations);
+		double bytesPerSecond = totalBytes / (totalNanos * 1e-9);
+
+		System.out.println(String.format(
+				"%-28s %-22s %14.1f %10.1f %14d %12.1f %6d", stage, parameters,
+				mean, 100 * deviation / mean, totalBytes / totalOperations,
+				bytesPerSecond / (1024 * 1024), gc));
+		if (this.sink == 42) {
+			System.out.println();
+		}
+	}
+
+	/**
+	 * @return Elapsed nanoseconds, allocated bytes and number of calls.
+	 */
+	private long[] iterate(Operation operation) throws Exception {
+		long calls = 0;
+		long startBytes = allocatedBytes();
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			Object result = operation.run();
+			this.sink += result == null ? 0 : System.identityHashCode(result);
+			calls++;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < this.iterationNanos);
+		return new long[] {elapsed, allocatedBytes() - startBytes, calls};
+	}
+
+	/**
+	 * @return Bytes allocated so far by all live threads, so work handed to
+	 * 			worker threads is counted too, or 0 if the JVM cannot tell.
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean =
+				ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			return 0;
+		}
+		long total = 0;
+		for (long bytes : ((com.sun.management.ThreadMXBean) bean)
+				.getThreadAllocatedBytes(bean.getAllThreadIds())) {
+			total += Math.max(0, bytes);
+		}
+		return total;
+	}
+
+	/**
+	 * @return Milliseconds spent in garbage collection so far.
+	 */
+	private static long gcMillis() {
+		long total = 0;
+		List<GarbageCollectorMXBean> beans =
+				ManagementFactory.getGarbageCollectorMXBeans();
+		for (GarbageCollectorMXBean bean : beans) {
+			total += Math.max(0, bean.getCollectionTime());
+		}
+		return total;
+	}
+}
@@ -0,0 +1,267 @@
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import weka.classifiers.trees.J48;
+import weka.core.FastVector;
+import weka.core.Instances;
+import classifier.CascadeClassifier;
+import classifier.ClassifierFactory;
+import classifier.CodebookClassifier;
+import classifier.DecisionTree;
+import classifier.InstanceBuffer;
+import codebook.Codebook;
+import codebook.CodebookFactory;
+import codebook.MaximalCrossCorrelation;
+import codebook.QuietConsole;
+import data.CorpusLoader;
+import data.Data;
+import data.FrameSet;
+import data.LabeledFrameSet;
+import data.PersonData;
+import data.WalkData;
+
+/**
+ * Benchmarks every stage of the pipeline separately, on the recordings of
+ * a training folder: reading a CSV file, cutting it into frames, pruning a
+ * codebook, the cross-correlation distance, activating frames, turning
+ * activations into instances, classifying an instance with J48, taken
+ * from a set of instances or loaded into an instance buffer, classifying
+ * a frame with the compiled tree and classifying a whole file.
+ *
+ * Codebooks of every requested size are learned online from the frames of
+ * the folder before measuring. The per-frame stages run on every requested
+ * number of frames. Every stage reports the time and the bytes allocated
+ * per operation, and the time spent in garbage collection.
+ *
+ * Usage: PipelineBenchmark [folder] [codebook sizes] [frame counts]
+ * 			[iterations]
+ *
+ * For instance: PipelineBenchmark Project/train 64,128,256 100,1000 5
+ *
+ */
+public class PipelineBenchmark {
+
+	private static final String labeledFolder = "Project/labeled_train";
+	private static final int warmupIterations = 3;
+	private static final long iterationMillis = 500;
+	// Online learning of the benchmark codebooks.
+	private static final int learningFrames = 2000;
+	private static final int batchSize = 256;
+	private static final int maxEpochs = 2;
+
+	public static void main(String[] args) throws Exception {
+		String folder = args.length > 0 ? args[0] : "Project/train";
+		int[] codebookSizes = parse(args.length > 1 ? args[1] : "64,128,256");
+		int[] frameCounts = parse(args.length > 2 ? args[2] : "100,1000");
+		int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+		Harness harness = new Harness(warmupIterations, iterations,
+				iterationMillis);
+
+		// Fixture: the recordings of the folder and all their frames.
+		File[] csvFiles = CorpusLoader.csvFiles(new File(folder));
+		// Only recordings with at least one window.
+		final List<File> files = new ArrayList<File>();
+		final List<Data> recordings = new ArrayList<Data>();
+		List<FrameSet> frameSets = new ArrayList<FrameSet>();
+		for (File file : csvFiles) {
+			Data data = new WalkData();
+			try {
+				data.readCSV(file);
+			} catch (IOException e) {
+				//Skip empty files
+				continue;
+			}
+			if (data.numOfWindows() > 0) {
+				files.add(file);
+				recordings.add(data);
+				frameSets.add(data.toFrameSet());
+			}
+		}
+		if (files.isEmpty()) {
+			throw new IllegalArgumentException(
+					folder + " has no recordings.");
+		}
+		final FrameSet allFrames = FrameSet.concatenate(frameSets);
+		LabeledFrameSet walkLabeled = CorpusLoader.getDefault()
+				.loadLabeled(labeledFolder, WalkData.class);
+		LabeledFrameSet personLabeled = CorpusLoader.getDefault()
+				.loadLabeled(labeledFolder, PersonData.class);
+		System.out.println(recordings.size() + " recordings, "
+				+ allFrames.size() + " frames of " + allFrames.dimension()
+				+ " samples");
+		harness.printHeader();
+
+		// Stages that do not depend on the codebook.
+		final int[] next = {0};
+		harness.run("readCSV", "1 file", 1, new Harness.Operation() {
+			@Override
+			public Object run() throws Exception {
+				Data data = new WalkData();
+				data.readCSV(files.get(next[0]++ % files.size()));
+				return data;
+			}
+		});
+		harness.run("toArrayRealVector", "1 file", 1,
+				new Harness.Operation() {
+			@Override
+			public Object run() {
+				return recordings.get(next[0]++ % recordings.size())
+						.toArrayRealVector();
+			}
+		});
+		final double[][] vectors = new double[Math.min(1000,
+				allFrames.size())][allFrames.dimension()];
+		for (int i = 0; i < vectors.length; i++) {
+			allFrames.copyFrame(i, vectors[i], 0);
+		}
+		harness.run("crossCorrelation.distance",
+				"n=" + allFrames.dimension(), 1, new Harness.Operation() {
+			@Override
+			public Object run() {
+				int i = next[0]++ % vectors.length;
+				return MaximalCrossCorrelation.distance(vectors[i],
+						vectors[(i + 1) % vectors.length]);
+			}
+		});
+
+		for (int codebookSize : codebookSizes) {
+			System.out.println("Learning codebook of size " + codebookSize
+					+ "...");
+			QuietConsole.mute();
+			final Codebook codebook;
+			CodebookClassifier walkClassifier;
+			CodebookClassifier personClassifier;
+			try {
+				codebook = CodebookFactory.newOnlineCodebook(
+						firstFrames(allFrames, learningFrames), batchSize,
+						codebookSize, maxEpochs, 0.01, 0.9);
+				walkClassifier = ClassifierFactory.createWalkClassifier(
+						codebook, walkLabeled);
+				personClassifier = ClassifierFactory.createPersonClassifier(
+						codebook, personLabeled);
+			} finally {
+				QuietConsole.unmute();
+			}
+			String size = "s=" + codebookSize;
+
+			harness.run("getMostInformativeSubset", size, 1,
+					new Harness.Operation() {
+				@Override
+				public Object run() {
+					return codebook.getMostInformativeSubset();
+				}
+			});
+
+			// J48 trained on the activations of the labeled walk frames.
+			final FastVector walkingValues = new FastVector(2);
+			walkingValues.addElement("Yes");
+			walkingValues.addElement("No");
+			FrameSet labeledActivations = codebook.activate(walkLabeled);
+			final J48 j48 = new J48();
+			Instances trainSet = ClassifierFactory.activationsToInstances(
+					labeledActivations.labelFrameSet(
+							walkLabeled.getLabelList()),
+					"walking", walkingValues);
+			j48.buildClassifier(trainSet);
+			final DecisionTree tree = DecisionTree.compile(j48, trainSet);
+
+			for (int frameCount : frameCounts) {
+				final FrameSet frames = firstFrames(allFrames, frameCount);
+				final int count = frames.size();
+				String parameters = size + " frames=" + count;
+
+				harness.run("activate", parameters, count,
+						new Harness.Operation() {
+					@Override
+					public Object run() {
+						return codebook.activate(frames);
+					}
+				});
+				final FrameSet activations = codebook.activate(frames);
+				harness.run("activationsToInstances", parameters, count,
+						new Harness.Operation() {
+					@Override
+					public Object run() {
+						return ClassifierFactory.activationsToInstances(
+								activations, "walking", walkingValues);
+					}
+				});
+				final Instances instances = ClassifierFactory
+						.activationsToInstances(activations, "walking",
+								walkingValues);
+				final InstanceBuffer buffer = new InstanceBuffer(
+						activations.dimension(), "walking", walkingValues);
+				harness.run("J48.classifyInstance", parameters, count,
+						new Harness.Operation() {
+					@Override
+					public Object run() throws Exception {
+						double sum = 0;
+						for (int i = 0; i < count; i++) {
+							sum += j48.classifyInstance(
+									instances.instance(i));
+						}
+						return sum;
+					}
+				});
+				harness.run("InstanceBuffer.classifyInstance", parameters,
+						count, new Harness.Operation() {
+					@Override
+					public Object run() throws Exception {
+						double sum = 0;
+						for (int i = 0; i < count; i++) {
+							sum += j48.classifyInstance(
+									buffer.load(activations, i));
+						}
+						return sum;
+					}
+				});
+				final int[] classes = new int[count];
+				harness.run("DecisionTree.classify", parameters, count,
+						new Harness.Operation() {
+					@Override
+					public Object run() {
+						tree.classify(activations, classes);
+						return classes;
+					}
+				});
+			}
+
+			final CascadeClassifier cascade = new CascadeClassifier(
+					walkClassifier, personClassifier, false);
+			harness.run("classifyFile", size, 1, new Harness.Operation() {
+				@Override
+				public Object run() throws Exception {
+					// classifyFile prints the label of every file.
+					QuietConsole.mute();
+					try {
+						return cascade.classifyFile(
+								files.get(next[0]++ % files.size()));
+					} finally {
+						QuietConsole.unmute();
+					}
+				}
+			});
+		}
+	}
+
+	private static FrameSet firstFrames(FrameSet frames, int count) {
+		int[] indices = new int[Math.min(count, frames.size())];
+		for (int i = 0; i < indices.length; i++) {
+			indices[i] = i;
+		}
+		return frames.select(indices);
+	}
+
+	private static int[] parse(String list) {
+		String[] values = list.split(",");
+		int[] result = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			result[i] = Integer.parseInt(values[i].trim());
+		}
+		return result;
+	}
+}
@@ -0,0 +1,134 @@
+package benchmark;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.math3.linear.ArrayRealVector;
+
+import codebook.Codebook;
+import codebook.CodebookFactory;
+import codebook.QuietConsole;
+import data.Data;
+import data.FrameSet;
+import data.WalkData;
+
+/**
+ * Compares the per-frame cost of silencing the LASSO output by swapping
+ * System.out (the way activation used to do it) with muting the current
+ * thread through QuietConsole.
+ * 
+ * Usage: QuietSolveBenchmark [csv file] [number of frames]
+ *
+ */
+public class QuietSolveBenchmark {
+	
+	private static final int overheadIterations = 1000000;
+
+	public static void main(String[] args) throws Exception {
+		String fileName = args.length > 0 ? 
+				args[0] : "Project/train/walk_38_other.csv";
+		int numberOfFrames = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		
+		Data data = new WalkData();
+		data.readCSV(fileName);
+		List<ArrayRealVector> vectors = data.toArrayRealVector();
+		List<FrameSet> frames = new ArrayList<FrameSet>(numberOfFrames);
+		for (int i = 0; i < Math.min(numberOfFrames, vectors.size()); i++) {
+			List<ArrayRealVector> single = new ArrayList<ArrayRealVector>(1);
+			single.add(vectors.get(i));
+			frames.add(new FrameSet(single));
+		}
+		Codebook codebook = CodebookFactory.getWalkCodebook();
+		
+		System.out.println("Overhead of silencing alone, per frame:");
+		for (int round = 0; round < 3; round++) {
+			report("  swap System.out", overheadIterations, swapOnly());
+			report("  QuietConsole   ", overheadIterations, muteOnly());
+		}
+		
+		System.out.println("Solve including silencing, per frame:");
+		for (int round = 0; round < 3; round++) {
+			report("  swap System.out", frames.size(),
+					swapSolve(codebook, frames));
+			report("  QuietConsole   ", frames.size(),
+					quietSolve(codebook, frames));
+		}
+	}
+	
+	private static long[] swapOnly() {
+		long[] start = measure();
+		for (int i = 0; i < overheadIterations; i++) {
+			PrintStream originalStream = System.out;
+			System.setOut(newDummyStream());
+			System.setOut(originalStream);
+		}
+		return elapsed(start);
+	}
+	
+	private static long[] muteOnly() {
+		long[] start = measure();
+		for (int i = 0; i < overheadIterations; i++) {
+			QuietConsole.mute();
+			QuietConsole.unmute();
+		}
+		return elapsed(start);
+	}
+	
+	private static long[] swapSolve(Codebook codebook, List<FrameSet> frames) {
+		long[] start = measure();
+		for (FrameSet frame : frames) {
+			PrintStream originalStream = System.out;
+			System.setOut(newDummyStream());
+			// Not muted, the swap is what silences LASSO here.
+			codebook.activateWithLasso(frame, false);
+			System.setOut(originalStream);
+		}
+		return elapsed(start);
+	}
+	
+	private static long[] quietSolve(Codebook codebook, List<FrameSet> frames) {
+		long[] start = measure();
+		for (FrameSet frame : frames) {
+			codebook.activateWithLasso(frame);
+		}
+		return elapsed(start);
+	}
+	
+	private static PrintStream newDummyStream() {
+		return new PrintStream(new OutputStream(){
+			public void write(int b) {
+				//NO-OP
+			}
+		});
+	}
+	
+	/**
+	 * @return Current time in nanoseconds and bytes allocated by this thread.
+	 */
+	private static long[] measure() {
+		return new long[]{System.nanoTime(), allocatedBytes()};
+	}
+	
+	private static long[] elapsed(long[] start) {
+		long[] end = measure();
+		return new long[]{end[0] - start[0], end[1] - start[1]};
+	}
+	
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = 
+				ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+	
+	private static void report(String name, int count, long[] elapsed) {
+		System.out.println(name + ": " + (elapsed[0] / count) + " ns, " 
+				+ (elapsed[1] / count) + " bytes allocated");
+	}
+}
@@ -0,0 +1,61 @@
+package benchmark;
+
+import java.util.List;
+
+import org.apache.commons.math3.linear.ArrayRealVector;
+
+import codebook.Codebook;
+import codebook.CodebookFactory;
+import data.Data;
+import data.FrameSet;
+import data.WalkData;
+
+/**
+ * Activates the frames of a recording with both the sparse coder and smile's
+ * LASSO, and reports the time per frame and the largest difference between
+ * the two activations of a frame.
+ * 
+ * Usage: SparseCoderBenchmark [csv file] [number of frames]
+ *
+ */
+public class SparseCoderBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		String fileName = args.length > 0 ? 
+				args[0] : "Project/train/walk_38_other.csv";
+		int numberOfFrames = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		
+		Data data = new WalkData();
+		data.readCSV(fileName);
+		List<ArrayRealVector> vectors = data.toArrayRealVector();
+		FrameSet frames = new FrameSet(vectors.subList(
+				0, Math.min(numberOfFrames, vectors.size())));
+		Codebook codebook = CodebookFactory.getWalkCodebook();
+		
+		// Warm up, the first pass includes compilation and the Gram matrix.
+		codebook.activate(frames);
+		
+		long start = System.nanoTime();
+		FrameSet lasso = codebook.activateWithLasso(frames);
+		long lassoTime = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		FrameSet coded = codebook.activate(frames);
+		long coderTime = System.nanoTime() - start;
+		
+		double maxDifference = 0;
+		double maxNorm = 0;
+		for (int i = 0; i < frames.size(); i++) {
+			maxDifference = Math.max(maxDifference,
+					lasso.getFrame(i).getDistance(coded.getFrame(i)));
+			maxNorm = Math.max(maxNorm, lasso.getFrame(i).getNorm());
+		}
+		
+		System.out.println("LASSO:        " 
+				+ (lassoTime / 1000 / frames.size()) + " us per frame");
+		System.out.println("Sparse coder: " 
+				+ (coderTime / 1000 / frames.size()) + " us per frame");
+		System.out.println("Largest difference between activations: " 
+				+ maxDifference + " (largest activation norm " + maxNorm + ")");
+	}
+}
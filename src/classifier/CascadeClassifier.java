@@ -0,0 +1,208 @@
+package classifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import classifier.ParallelFileClassifier.FileResult;
+import classifier.ParallelFileClassifier.FileTask;
+import weka.core.FastVector;
+import data.Data;
+import data.FrameSet;
+import data.PersonData;
+import data.WalkData;
+import metrics.Counter;
+import metrics.Metrics;
+import metrics.Timer;
+import util.DaemonThreadFactory;
+
+/**
+ * Classifies who is walking in a recording: the walk classifier selects the
+ * walking windows, which go straight to the person classifier.
+ *
+ * This gives the same frames as writing the walking windows to
+ * Project/filtered_&lt;folder&gt;/filtered_&lt;name&gt;.csv and reading that
+ * file as person data: the walking windows are written one after the other,
+ * so every non-overlapping window of the filtered file is one walking
+ * window. The frames are not written with reduced precision and parsed
+ * again, though.
+ *
+ * Writing the filtered files is optional and happens on a background
+ * thread, off the classification path. Call close to finish writing them.
+ *
+ */
+public class CascadeClassifier {
+
+	private static final Timer fileTimer = Metrics.timer(
+			"mlii_classify_file_seconds",
+			"Time to classify the person walking in a file.");
+	private static final Counter filesWithoutWalking = Metrics.counter(
+			"mlii_files_without_walking",
+			"Files skipped because none of their windows is walking.");
+
+	private final CodebookClassifier walkClassifier;
+	private final CodebookClassifier personClassifier;
+	private final ExecutorService writer;
+	private final List<Future<?>> writes = new ArrayList<Future<?>>();
+
+	private final String personClassName;
+	private final FastVector personClassValues;
+
+	/**
+	 * @param walkClassifier	Classifies windows as walking or not.
+	 * @param personClassifier	Classifies walking windows by person.
+	 * @param writeFiltered		Whether to also write the walking windows of
+	 * 							every file to its filtered CSV file.
+	 */
+	public CascadeClassifier(final CodebookClassifier walkClassifier,
+			final CodebookClassifier personClassifier,
+			final boolean writeFiltered) {
+		this.walkClassifier = walkClassifier;
+		this.personClassifier = personClassifier;
+		this.writer = writeFiltered ?
+				Executors.newSingleThreadExecutor(
+						new DaemonThreadFactory("filtered-writer")) : null;
+		Data personData = new PersonData();
+		this.personClassName = personData.getClassName();
+		this.personClassValues = personData.getClassValues();
+	}
+
+	/**
+	 * Classifies all CSV files in a folder in parallel. Files without
+	 * walking windows are skipped, files that cannot be classified are
+	 * reported and skipped.
+	 *
+	 * @param folderName	The folder.
+	 * @return The person of every file, in the order of the file names.
+	 * @throws Exception
+	 */
+	public List<String> classify(final String folderName) throws Exception {
+		System.out.println("Classifying...");
+		List<String> list = new ArrayList<String>();
+		List<FileResult> results = ParallelFileClassifier.getDefault()
+				.classifyFolder(folderName, new FileTask() {
+			@Override
+			public String classify(File file) throws Exception {
+				return classifyFile(file);
+			}
+		});
+		for (FileResult result : results) {
+			if (!result.isSuccessful()) {
+				System.out.println("Could not classify " + result);
+			} else if (result.getLabel() != null) {
+				list.add(result.getLabel());
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Classifies the person walking in a file.
+	 *
+	 * @param file	CSV file with t,x,y,z data.
+	 * @return The person, or null if no window of the file is walking.
+	 * @throws Exception
+	 */
+	public String classifyFile(final File file) throws Exception {
+		long start = fileTimer.start();
+		try {
+			return this.classifyRecording(file);
+		} finally {
+			fileTimer.stop(start);
+		}
+	}
+
+	private String classifyRecording(final File file) throws Exception {
+		final WalkData data = new WalkData();
+		data.readCSV(file);
+		if (data.numOfWindows() == 0) {
+			System.out.println("Data in "+file.getName()+" has no windows");
+			filesWithoutWalking.increment();
+			return null;
+		}
+		FrameSet frames = data.toFrameSet();
+		final List<String> labels = this.walkClassifier.getLabels(data);
+		if (this.writer != null) {
+			synchronized (this.writes) {
+				// Forget the writes that are done, a long session would
+				// otherwise keep every one of them.
+				Iterator<Future<?>> iterator = this.writes.iterator();
+				while (iterator.hasNext()) {
+					Future<?> write = iterator.next();
+					if (write.isDone()) {
+						report(write);
+						iterator.remove();
+					}
+				}
+				this.writes.add(this.writer.submit(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							data.writeData(labels);
+						} catch (IOException e) {
+							throw new IllegalStateException(e);
+						}
+					}
+				}));
+			}
+		}
+
+		int[] walking = new int[labels.size()];
+		int count = 0;
+		for (int i = 0; i < labels.size(); i++) {
+			if ("Yes".equals(labels.get(i))) {
+				walking[count++] = i;
+			}
+		}
+		if (count == 0) {
+			System.out.println("Data in "+file.getName()+" has no walking");
+			filesWithoutWalking.increment();
+			return null;
+		}
+		int[] selected = new int[count];
+		System.arraycopy(walking, 0, selected, 0, count);
+
+		String winnerLabel = this.personClassifier.classify(
+				frames.select(selected), this.personClassName,
+				this.personClassValues);
+		System.out.println("Data in "+file.getName()+" is from "+winnerLabel);
+		return winnerLabel;
+	}
+
+	/**
+	 * Waits until all filtered files are written and stops the writer
+	 * thread. Files that could not be written are reported.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void close() throws InterruptedException {
+		if (this.writer == null) {
+			return;
+		}
+		this.writer.shutdown();
+		synchronized (this.writes) {
+			for (Future<?> write : this.writes) {
+				report(write);
+			}
+			this.writes.clear();
+		}
+	}
+
+	/**
+	 * Waits until the write is done and reports it if it failed.
+	 */
+	private static void report(Future<?> write) throws InterruptedException {
+		try {
+			write.get();
+		} catch (ExecutionException e) {
+			System.out.println("Could not write filtered data: "
+					+ e.getCause().getMessage());
+		}
+	}
+}
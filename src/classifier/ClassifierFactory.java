@@ -1,5 +1,8 @@
 package classifier;
 
+import java.io.File;
+import java.io.IOException;
+
 import weka.classifiers.Classifier;
 import weka.classifiers.functions.SMO;
 import weka.classifiers.trees.J48;
@@ -7,9 +10,15 @@ import weka.core.Attribute;
 import weka.core.FastVector;
 import weka.core.Instance;
 import weka.core.Instances;
+import weka.core.SparseInstance;
 import codebook.Codebook;
+import data.CorpusLoader;
 import data.FrameSet;
 import data.LabeledFrameSet;
+import data.PersonData;
+import data.WalkData;
+import metrics.Metrics;
+import metrics.Timer;
 
 /**
  * Class used to train classifiers.
@@ -17,6 +26,63 @@ import data.LabeledFrameSet;
  */
 public class ClassifierFactory {
 	
+	private static final String classifierFolder = "Project/classifiers/";
+	private static final String classifierExtension = ".model";
+	
+	private static final Timer featurizeTimer = Metrics.timer(
+			"mlii_featurize_seconds",
+			"Time to turn a set of activations into instances.");
+	
+	/**
+	 * Returns the walk classifier for a codebook, trained on the labeled
+	 * data in a folder. A classifier trained before on the same codebook 
+	 * and the same data is read from disk, otherwise a new one is trained 
+	 * and written to disk.
+	 * 
+	 * @param codebook		A codebook.
+	 * @param labeledFolder	Folder with the labeled CSV files.
+	 * @return CodebookClassifier object.
+	 * @throws Exception
+	 */
+	public static CodebookClassifier getWalkClassifier(
+			Codebook codebook, String labeledFolder) throws Exception {
+		String dataFingerprint = CorpusLoader.fingerprint(labeledFolder);
+		File file = classifierFile("walk");
+		CodebookClassifier classifier = 
+				readClassifier(file, "walk", codebook, dataFingerprint);
+		if (classifier == null) {
+			classifier = createWalkClassifier(codebook, CorpusLoader
+					.getDefault().loadLabeled(labeledFolder, WalkData.class));
+			writeClassifier(classifier, "walk", dataFingerprint, file);
+		}
+		return classifier;
+	}
+	
+	/**
+	 * Returns the person classifier for a codebook, trained on the labeled
+	 * data in a folder. A classifier trained before on the same codebook 
+	 * and the same data is read from disk, otherwise a new one is trained 
+	 * and written to disk.
+	 * 
+	 * @param codebook		A codebook.
+	 * @param labeledFolder	Folder with the labeled CSV files.
+	 * @return CodebookClassifier object.
+	 * @throws Exception
+	 */
+	public static CodebookClassifier getPersonClassifier(
+			Codebook codebook, String labeledFolder) throws Exception {
+		String dataFingerprint = CorpusLoader.fingerprint(labeledFolder);
+		File file = classifierFile("person");
+		CodebookClassifier classifier = 
+				readClassifier(file, "person", codebook, dataFingerprint);
+		if (classifier == null) {
+			classifier = createPersonClassifier(codebook, CorpusLoader
+					.getDefault().loadLabeled(labeledFolder, PersonData.class));
+			writeClassifier(classifier, "person", dataFingerprint, file);
+		}
+		return classifier;
+	}
+	
 	/**
 	 * Given a codebook and a labeled frame set, this method trains a
 	 * classifier to distinguish between walking and other activities.
@@ -32,6 +98,7 @@ public class ClassifierFactory {
 		
 		// Get activations for the labeled frames.
 		FrameSet activations = codebook.activate(labeled);
+		printDensity(activations);
 		// Label the activations.
 		LabeledFrameSet labeledActivations = 
 				activations.labelFrameSet(labeled.getLabelList());
@@ -63,7 +130,7 @@ public class ClassifierFactory {
 		// Use the training set composed of labeled activations to build
 		// the classifier.
 		classifier.buildClassifier(trainSet);
-		return new CodebookClassifier(codebook, classifier);
+		return createCodebookClassifier(codebook, classifier, trainSet);
 	}
 	
 	/**
@@ -81,6 +148,7 @@ public class ClassifierFactory {
 		
 		// Get activations for the labeled frames.
 		FrameSet activations = codebook.activate(labeled);
+		printDensity(activations);
 		// Label the activations.
 		LabeledFrameSet labeledActivations = 
 				activations.labelFrameSet(labeled.getLabelList());
@@ -116,21 +184,91 @@ public class ClassifierFactory {
 		// Use the training set composed of labeled activations to build
 		// the classifier.
 		classifier.buildClassifier(trainSet);
-		return new CodebookClassifier(codebook, classifier);
+		return createCodebookClassifier(codebook, classifier, trainSet);
 	}
 	
 	/**
-	 * Turns activations into instances without labels.
-	 * This is used during the classification stage.
-	 * @param activations
-	 * @param className
-	 * @param classValues
+	 * Wraps a trained classifier with its codebook. A J48 tree is compiled
+	 * into a DecisionTree, which classifies without Weka instances. Trees
+	 * that cannot be compiled, or that do not classify the training set
+	 * exactly like J48, are left to Weka.
+	 * 
+	 * @param codebook		The codebook.
+	 * @param classifier	The trained classifier.
+	 * @param trainSet		The instances it was trained on.
+	 * @return CodebookClassifier object.
+	 * @throws Exception
+	 */
+	private static CodebookClassifier createCodebookClassifier(
+			Codebook codebook, Classifier classifier, Instances trainSet)
+					throws Exception {
+		DecisionTree tree = null;
+		if (classifier instanceof J48) {
+			try {
+				tree = DecisionTree.compile((J48) classifier, trainSet);
+			} catch (IllegalArgumentException e) {
+				System.out.println("Classifying with Weka, the tree could "
+						+ "not be compiled: " + e.getMessage());
+			}
+		}
+		return new CodebookClassifier(codebook, classifier, tree);
+	}
+	
+	private static File classifierFile(String kind) {
+		return new File(classifierFolder + kind + classifierExtension);
+	}
+	
+	/**
+	 * Reads a classifier from disk if it was trained on the codebook and 
+	 * the data.
+	 * 
+	 * @return The classifier, or null if there is none or it is out of date.
+	 */
+	private static CodebookClassifier readClassifier(File file, String kind,
+			Codebook codebook, String dataFingerprint) {
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			CodebookClassifier classifier = ClassifierFile.read(
+					file, kind, codebook, dataFingerprint);
+			if (classifier == null) {
+				System.out.println("Classifier " + file.getName()
+						+ " is out of date, training again.");
+			} else {
+				System.out.println("Read " + kind + " classifier from "
+						+ file.getName() + ".");
+			}
+			return classifier;
+		} catch (Exception e) {
+			System.out.println("Classifier " + file.getName()
+					+ " is corrupt, training again.");
+			return null;
+		}
+	}
+	
+	private static void writeClassifier(CodebookClassifier classifier,
+			String kind, String dataFingerprint, File file) {
+		try {
+			ClassifierFile.write(classifier, kind, dataFingerprint, file);
+		} catch (IOException e) {
+			System.out.println("Failed to write trained classifier to disk. "
+					+ "Continuing execution.");
+		}
+	}
+	
+	/**
+	 * Creates an empty set of instances with one numeric attribute per basic
+	 * vector and the class attribute last.
+	 * 
+	 * @param numOfBasicVectors	Number of activations per frame.
+	 * @param className			Name of the class attribute.
+	 * @param classValues		Values of the class attribute.
+	 * @param capacity			Number of instances to make room for.
 	 * @return
 	 */
-	public static Instances activationsToInstances(
-			FrameSet activations,String className, FastVector classValues) {
-		int numOfFrames = activations.size();
-		int numOfBasicVectors = activations.dimension();
+	static Instances createHeader(int numOfBasicVectors,
+			String className, FastVector classValues, int capacity) {
 		int numOfAttributes = numOfBasicVectors+1;
 		FastVector attributes = new FastVector(numOfAttributes);
 		
@@ -140,19 +278,33 @@ public class ClassifierFactory {
 		}
 		attributes.addElement(new Attribute(className,classValues));
 		
-		//Create training set
-		Instances instances = new Instances("Rel",attributes,numOfFrames);
+		Instances instances = new Instances("Rel",attributes,capacity);
 		instances.setClassIndex(numOfAttributes-1);
+		return instances;
+	}
+	
+	/**
+	 * Turns activations into instances without labels.
+	 * This is used during the classification stage.
+	 * @param activations
+	 * @param className
+	 * @param classValues
+	 * @return
+	 */
+	public static Instances activationsToInstances(
+			FrameSet activations,String className, FastVector classValues) {
+		long start = featurizeTimer.start();
+		int numOfFrames = activations.size();
+		int numOfBasicVectors = activations.dimension();
+		Instances instances = createHeader(
+				numOfBasicVectors, className, classValues, numOfFrames);
 		for (int i = 0; i < numOfFrames; i++) {
-			Instance instance = new Instance(numOfAttributes);
+			Instance instance = newInstance(activations, i);
 			instance.setDataset(instances);
-			double[] attValues = activations.getFrame(i).toArray();
-			for (int j = 0; j < numOfBasicVectors; j++) {
-				instance.setValue(j, attValues[j]);
-			}
 			instances.add(instance);
 		}
 		
+		featurizeTimer.stop(start);
 		return instances;
 	}
 	
@@ -167,32 +319,58 @@ public class ClassifierFactory {
 	public static Instances activationsToInstances(
 			LabeledFrameSet activations,
 			String className, FastVector classValues) {
+		long start = featurizeTimer.start();
 		int numOfFrames = activations.size();
 		int numOfBasicVectors = activations.dimension();
-		int numOfAttributes = numOfBasicVectors+1;
-		FastVector attributes = new FastVector(numOfAttributes);
-		
-		//Create attributes for all basic vectors
-		for (int i = 0; i < numOfBasicVectors; i++) {
-			attributes.addElement(new Attribute(""+i));
-		}
-		attributes.addElement(new Attribute(className,classValues));
-		
-		//Create training set
-		Instances instances = new Instances("Rel",attributes,numOfFrames);
-		instances.setClassIndex(numOfAttributes-1);
+		Instances instances = createHeader(
+				numOfBasicVectors, className, classValues, numOfFrames);
 		for (int i = 0; i < numOfFrames; i++) {
-			Instance instance = new Instance(numOfAttributes);
+			Instance instance = newInstance(activations, i);
 			instance.setDataset(instances);
-			double[] attValues = activations.getFrame(i).toArray();
-			for (int j = 0; j < numOfBasicVectors; j++) {
-				instance.setValue(j, attValues[j]);
-			}
 			instance.setClassValue(activations.getLabel(i));
 			instances.add(instance);
 		}
 		
+		featurizeTimer.stop(start);
 		return instances;
 	}
-
+	
+	/**
+	 * Creates the instance of frame i of the activations, with a missing
+	 * class value. Sparse activations give a sparse instance, which only
+	 * holds the nonzero activations.
+	 * @param activations
+	 * @param i
+	 * @return
+	 */
+	private static Instance newInstance(FrameSet activations, int i) {
+		int numOfBasicVectors = activations.dimension();
+		if (activations.isSparse()) {
+			int count = activations.nonZeros(i);
+			int[] indices = new int[count+1];
+			double[] attValues = new double[count+1];
+			activations.copyNonZeros(i, indices, attValues);
+			//The class attribute is the last one, the indices stay sorted
+			indices[count] = numOfBasicVectors;
+			attValues[count] = Instance.missingValue();
+			return new SparseInstance(
+					1.0, attValues, indices, numOfBasicVectors+1);
+		}
+		//Copy the frame straight into the values, setValue copies all
+		//values on every call
+		double[] attValues = new double[numOfBasicVectors+1];
+		activations.copyFrame(i, attValues, 0);
+		attValues[numOfBasicVectors] = Instance.missingValue();
+		return new Instance(1.0, attValues);
+	}
+	
+	/**
+	 * Prints the fraction of the activations that is nonzero.
+	 * @param activations
+	 */
+	private static void printDensity(FrameSet activations) {
+		System.out.println("Activations are "
+				+ Math.round(activations.density()*1000)/10.0 + "% nonzero"
+				+ (activations.isSparse() ? ", stored sparse." : "."));
+	}
 }
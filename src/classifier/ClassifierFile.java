@@ -0,0 +1,128 @@
+package classifier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import weka.classifiers.Classifier;
+import codebook.Codebook;
+
+/**
+ * File holding a trained classifier together with what it was trained on,
+ * so it can be loaded instead of trained again as long as neither changed.
+ *
+ * The codebook itself is not stored, only its fingerprint: the classifier
+ * is loaded for a codebook with the same fingerprint. The labeled data is
+ * identified by the fingerprint of its folder. The header is followed by
+ * the Weka model and the compiled tree, both serialized:
+ *
+ * <pre>
+ * int    magic ("CLSF")
+ * int    version
+ * UTF    kind of classifier, like walk or person
+ * UTF    fingerprint of the codebook
+ * UTF    fingerprint of the labeled data
+ * object Weka classifier
+ * object DecisionTree, or null
+ * </pre>
+ *
+ */
+final class ClassifierFile {
+
+	static final int magic = 0x434C5346; // "CLSF"
+	// Also raised when the training in ClassifierFactory changes, so models
+	// trained before are trained again.
+	private static final int version = 1;
+
+	private ClassifierFile() {
+	}
+
+	/**
+	 * Writes a classifier to the file. The file is written to a temporary
+	 * file first, so a classifier file that exists is always complete.
+	 *
+	 * @param classifier		The classifier.
+	 * @param kind				Kind of classifier.
+	 * @param dataFingerprint	Fingerprint of the labeled data it was
+	 * 							trained on.
+	 * @param file				The file to write.
+	 * @throws IOException
+	 */
+	static void write(CodebookClassifier classifier, String kind,
+			String dataFingerprint, File file) throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		File temporary = new File(file.getPath() + ".tmp");
+		OutputStream buffer = new BufferedOutputStream(
+				new FileOutputStream(temporary));
+		try {
+			DataOutputStream header = new DataOutputStream(buffer);
+			header.writeInt(magic);
+			header.writeInt(version);
+			header.writeUTF(kind);
+			header.writeUTF(classifier.getCodebook().fingerprint());
+			header.writeUTF(dataFingerprint);
+			header.flush();
+			ObjectOutputStream output = new ObjectOutputStream(buffer);
+			output.writeObject(classifier.getClassifier());
+			output.writeObject(classifier.getTree());
+			output.flush();
+		} finally {
+			buffer.close();
+		}
+		Files.move(temporary.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Reads a classifier from the file, if it was trained for the given
+	 * codebook and data.
+	 *
+	 * @param file				The file.
+	 * @param kind				Kind of classifier.
+	 * @param codebook			The codebook to classify with.
+	 * @param dataFingerprint	Fingerprint of the labeled data.
+	 * @return The classifier, or null if the file is of another version or
+	 * 			was trained for another kind, codebook or data.
+	 * @throws IOException	If the file is not a classifier file or cannot
+	 * 						be read.
+	 * @throws ClassNotFoundException	If the model is of an unknown class.
+	 */
+	static CodebookClassifier read(File file, String kind, Codebook codebook,
+			String dataFingerprint)
+			throws IOException, ClassNotFoundException {
+		InputStream buffer = new BufferedInputStream(
+				new FileInputStream(file));
+		try {
+			DataInputStream header = new DataInputStream(buffer);
+			if (header.readInt() != magic) {
+				throw new IOException(file + " is not a classifier file.");
+			}
+			if (header.readInt() != version
+					|| !header.readUTF().equals(kind)
+					|| !header.readUTF().equals(codebook.fingerprint())
+					|| !header.readUTF().equals(dataFingerprint)) {
+				return null;
+			}
+			ObjectInputStream input = new ObjectInputStream(buffer);
+			Classifier classifier = (Classifier) input.readObject();
+			DecisionTree tree = (DecisionTree) input.readObject();
+			return new CodebookClassifier(codebook, classifier, tree);
+		} finally {
+			buffer.close();
+		}
+	}
+}
@@ -1,14 +1,15 @@
 package classifier;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
-import main.Main;
+import classifier.ParallelFileClassifier.FileResult;
+import classifier.ParallelFileClassifier.FileTask;
 import weka.classifiers.Classifier;
 import weka.classifiers.Evaluation;
 import weka.core.FastVector;
@@ -19,6 +20,9 @@ import data.Data;
 import data.FrameSet;
 import data.LabeledFrameSet;
 import data.PersonData;
+import metrics.Counter;
+import metrics.Metrics;
+import metrics.Timer;
 
 /**
  * Classifier class incorporating a codebook for feature extraction.
@@ -26,8 +30,22 @@ import data.PersonData;
  */
 public class CodebookClassifier {
 	
+	private static final Timer classifyTimer = Metrics.timer(
+			"mlii_classify_seconds", "Time to classify a set of instances.");
+	private static final Counter framesClassified = Metrics.counter(
+			"mlii_frames_classified", "Frames classified.");
+	private static final Counter treeFallbacks = Metrics.counter(
+			"mlii_tree_fallbacks",
+			"Frames the compiled tree left to Weka for a missing value.");
+	
 	private Codebook codebook;
 	private Classifier classifier;
+	// The classifier compiled into flat arrays, or null to classify with
+	// Weka.
+	private final DecisionTree tree;
+	// Header and instances per thread to classify activations, built for
+	// the class of the last call.
+	private volatile InstanceBuffer buffer;
 	
 	/**
 	 * Constructor takes a codebook and a classifier and returns an instance of
@@ -37,8 +55,33 @@ public class CodebookClassifier {
 	 */
 	public CodebookClassifier(
 			final Codebook codebook, final Classifier classifier) {
+		this(codebook, classifier, null);
+	}
+	
+	/**
+	 * Constructor for a classifier that was compiled into a decision tree,
+	 * which then classifies instead of Weka.
+	 * @param codebook
+	 * @param classifier
+	 * @param tree	The classifier compiled, or null.
+	 */
+	public CodebookClassifier(final Codebook codebook,
+			final Classifier classifier, final DecisionTree tree) {
 		this.codebook = codebook;
 		this.classifier = classifier;
+		this.tree = tree;
+	}
+	
+	Codebook getCodebook() {
+		return this.codebook;
+	}
+	
+	Classifier getClassifier() {
+		return this.classifier;
+	}
+	
+	DecisionTree getTree() {
+		return this.tree;
 	}
 	
 	/**
@@ -49,18 +92,32 @@ public class CodebookClassifier {
 	 * @throws Exception
 	 */
 	public List<String> getLabels(final Data d) throws Exception {
+		return this.getLabels(d.toFrameSet(), d.getClassName(), d.getClassValues());
+	}
+	
+	/**
+	 * Returns a list of classification labels for a set of frames.
+	 * 
+	 * @param frames		The frames.
+	 * @param className		Name of the class attribute.
+	 * @param classValues	Values of the class attribute.
+	 * @return	List of labels, one per frame.
+	 * @throws Exception
+	 */
+	public List<String> getLabels(final FrameSet frames, 
+			final String className, final FastVector classValues) 
+					throws Exception {
 		//Get activations for all frames
-		FrameSet activations = this.codebook.activate(
-				new FrameSet(d.toArrayRealVector()));
-		Instances instances = ClassifierFactory.activationsToInstances(
-				activations,d.getClassName(),d.getClassValues());
-		final List<String> labels = new ArrayList<String>(
-				instances.numInstances());
-		for (int i = 0; i < instances.numInstances(); i++) {
-			Instance instance = instances.instance(i);
-			int classId = (int)this.classifier.classifyInstance(instance);
-			labels.add(instances.classAttribute().value(classId));
+		FrameSet activations = this.codebook.activate(frames);
+		final List<String> labels = new ArrayList<String>(activations.size());
+		long start = classifyTimer.start();
+		int[] classes = this.classifyFrames(
+				activations, className, classValues);
+		for (int classId : classes) {
+			labels.add((String)classValues.elementAt(classId));
 		}
+		classifyTimer.stop(start);
+		framesClassified.add(activations.size());
 		
 		return labels;
 	}
@@ -90,18 +147,29 @@ public class CodebookClassifier {
 	}
 	
 	
+	/**
+	 * Classifies all CSV files in a folder in parallel. Files that cannot be
+	 * classified are reported and left out.
+	 * 
+	 * @param folderName	The folder.
+	 * @return	The label of every file, in the order of the file names.
+	 * @throws Exception
+	 */
 	public List<String> classify(final String folderName) throws Exception {
 		System.out.println("Classifying...");
-		final File folder = new File(folderName);
 		List<String> list = new ArrayList<String>();
-		//Get all CSV files
-		for (File file : folder.listFiles(new Main.CSVFilter())) {
-			try {
-				list.add(this.classifyFile(file));
-			} catch (IOException e) {
-				//Completely empty files are ignored
-			} catch (RuntimeException e) {
-				//Files with only a header are ignored
+		List<FileResult> results = ParallelFileClassifier.getDefault()
+				.classifyFolder(folderName, new FileTask() {
+			@Override
+			public String classify(File file) throws Exception {
+				return classifyFile(file);
+			}
+		});
+		for (FileResult result : results) {
+			if (result.isSuccessful()) {
+				list.add(result.getLabel());
+			} else {
+				System.out.println("Could not classify " + result);
 			}
 		}
 		return list;
@@ -112,27 +180,43 @@ public class CodebookClassifier {
 		PersonData data = new PersonData();
 		data.readCSV(file);
 		//Turn instances into frameset
-		FrameSet frames = new FrameSet(data.toArrayRealVector());
+		FrameSet frames = data.toFrameSet();
+		String winnerLabel = this.classify(
+				frames, data.getClassName(), data.getClassValues());
+		System.out.println("Data in "+file.getName()+" is from "+winnerLabel);
+		return winnerLabel;
+	}
+	
+	/**
+	 * Classifies every frame and returns the majority vote.
+	 * 
+	 * @param frames		The frames.
+	 * @param className		Name of the class attribute.
+	 * @param classValues	Values of the class attribute.
+	 * @return	The label of most frames.
+	 * @throws Exception
+	 */
+	public String classify(final FrameSet frames, final String className, 
+			final FastVector classValues) throws Exception {
 		//Activate frameset
 		FrameSet activations = this.codebook.activate(frames);
-		//Turn activations back to instances
-		FastVector classValues = data.getClassValues();
-		Instances instances = ClassifierFactory.activationsToInstances(
-				activations, data.getClassName(), classValues);
 		//Prepare voting map
 		Map<String, Integer> votingMap = new HashMap<String, Integer>();
 		for (int i = 0; i < classValues.size(); i++) {
 			votingMap.put((String)classValues.elementAt(i), 0);
 		}
 		//Classify instances
-		for (int i = 0; i < instances.numInstances(); i++) {
-			Instance instance = instances.instance(i);
-			int index = (int)this.classifier.classifyInstance(instance);
+		long start = classifyTimer.start();
+		int[] classes = this.classifyFrames(
+				activations, className, classValues);
+		for (int index : classes) {
 			String label = (String)classValues.elementAt(index);
 
 			int value = votingMap.get(label);
 			votingMap.put(label, value+1);
 		}
+		classifyTimer.stop(start);
+		framesClassified.add(activations.size());
 		
 		//Check the majority vote
 		String winnerLabel = "";
@@ -144,9 +228,56 @@ public class CodebookClassifier {
 				winnerLabel = label;
 			}
 		}
-		System.out.println("Data in "+file.getName()+" is from "+winnerLabel);
 		return winnerLabel;
 	}
 	
+	/**
+	 * Classifies all frames of the activations with the compiled tree.
+	 * Without a tree, and for frames the tree leaves to Weka, the frames go
+	 * to Weka through the instance buffer of this thread.
+	 * 
+	 * @return The index of the class of every frame.
+	 * @throws Exception
+	 */
+	private int[] classifyFrames(FrameSet activations, String className,
+			FastVector classValues) throws Exception {
+		int[] classes = new int[activations.size()];
+		if (this.tree != null) {
+			this.tree.classify(activations, classes);
+		} else {
+			Arrays.fill(classes, -1);
+		}
+		InstanceBuffer buffer = null;
+		for (int i = 0; i < classes.length; i++) {
+			if (classes[i] >= 0) {
+				continue;
+			}
+			if (this.tree != null) {
+				treeFallbacks.increment();
+			}
+			if (buffer == null) {
+				buffer = this.getBuffer(
+						activations.dimension(), className, classValues);
+			}
+			Instance instance = buffer.load(activations, i);
+			classes[i] = (int)this.classifier.classifyInstance(instance);
+		}
+		return classes;
+	}
 	
+	/**
+	 * Returns the instance buffer for activations of a class, building it
+	 * when the class differs from the last call.
+	 */
+	private InstanceBuffer getBuffer(int numOfBasicVectors,
+			String className, FastVector classValues) {
+		InstanceBuffer current = this.buffer;
+		if (current == null
+				|| !current.accepts(numOfBasicVectors, className, classValues)) {
+			current = new InstanceBuffer(
+					numOfBasicVectors, className, classValues);
+			this.buffer = current;
+		}
+		return current;
+	}
 }
@@ -0,0 +1,292 @@
+package classifier;
+
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import weka.classifiers.trees.J48;
+import weka.classifiers.trees.j48.C45Split;
+import weka.classifiers.trees.j48.ClassifierSplitModel;
+import weka.classifiers.trees.j48.ClassifierTree;
+import weka.classifiers.trees.j48.Distribution;
+import weka.core.Instance;
+import weka.core.Instances;
+import data.FrameSet;
+
+/**
+ * A J48 tree compiled into flat arrays, which classifies frames of
+ * activations without Weka instances and without allocating.
+ *
+ * Node i either tests a feature, features[i] &gt;= 0, and continues with
+ * children[2*i] if the feature is at most thresholds[i] and with
+ * children[2*i+1] otherwise, or is a leaf of class -1-features[i]. Nodes are
+ * stored depth first, so the left child follows its parent.
+ *
+ * The comparison and the class of every leaf are those of J48 for values
+ * that are not missing: a value goes left if it is at most the threshold
+ * plus Weka's tolerance of 1e-6, and a leaf predicts the first class whose
+ * probability exceeds the others by more than that tolerance. A missing
+ * value spreads an instance over all branches in Weka, so a tree refuses
+ * frames with a missing value on their path and leaves them to J48.
+ *
+ */
+public final class DecisionTree implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// Tolerance of Weka's Utils.gr and Utils.smOrEq.
+	private static final double small = 1e-6;
+
+	private final int[] features;
+	private final double[] thresholds;
+	private final int[] children;
+	private final int numClasses;
+
+	private DecisionTree(int[] features, double[] thresholds, int[] children,
+			int numClasses) {
+		this.features = features;
+		this.thresholds = thresholds;
+		this.children = children;
+		this.numClasses = numClasses;
+	}
+
+	/**
+	 * Compiles a trained J48 tree and checks that it classifies every
+	 * training instance like J48 does.
+	 *
+	 * @param j48		The trained tree.
+	 * @param trainSet	The instances it was trained on.
+	 * @return The compiled tree.
+	 * @throws IllegalArgumentException	If the tree cannot be compiled, for
+	 * 			instance because it splits a nominal attribute, or if it
+	 * 			classifies a training instance differently.
+	 * @throws Exception	If J48 cannot classify a training instance.
+	 */
+	public static DecisionTree compile(J48 j48, Instances trainSet)
+			throws Exception {
+		Flattener flattener = new Flattener(trainSet);
+		flattener.add((ClassifierTree) read(j48, "m_root"), null, 0);
+		DecisionTree tree = flattener.toTree();
+
+		for (int i = 0; i < trainSet.numInstances(); i++) {
+			Instance instance = trainSet.instance(i);
+			int expected = (int) j48.classifyInstance(instance);
+			int actual = tree.classify(instance.toDoubleArray(), 0);
+			if (actual != expected) {
+				throw new IllegalArgumentException("Compiled tree predicts "
+						+ actual + " instead of " + expected
+						+ " for training instance " + i);
+			}
+		}
+		return tree;
+	}
+
+	/**
+	 * Classifies one frame of activations.
+	 *
+	 * @param values	Array holding the activations.
+	 * @param offset	Index of the first activation of the frame.
+	 * @return The index of the class, or -1 if a value tested on the way is
+	 * 			missing.
+	 */
+	public int classify(double[] values, int offset) {
+		int node = 0;
+		int feature;
+		while ((feature = this.features[node]) >= 0) {
+			double value = values[offset + feature];
+			double threshold = this.thresholds[node];
+			if (value - threshold < small || value <= threshold) {
+				node = this.children[2 * node];
+			} else if (value > threshold) {
+				node = this.children[2 * node + 1];
+			} else {
+				return -1;
+			}
+		}
+		return -1 - feature;
+	}
+
+	/**
+	 * Classifies frame i of a set of activations.
+	 *
+	 * @return The index of the class, or -1 if a value tested on the way is
+	 * 			missing.
+	 */
+	public int classify(FrameSet activations, int i) {
+		int node = 0;
+		int feature;
+		while ((feature = this.features[node]) >= 0) {
+			double value = activations.get(i, feature);
+			double threshold = this.thresholds[node];
+			if (value - threshold < small || value <= threshold) {
+				node = this.children[2 * node];
+			} else if (value > threshold) {
+				node = this.children[2 * node + 1];
+			} else {
+				return -1;
+			}
+		}
+		return -1 - feature;
+	}
+
+	/**
+	 * Classifies all frames of a set of activations. Every frame is first
+	 * copied into a single array, as reading a sample of a sparse frame set
+	 * takes a search. Of a sparse frame only the nonzero samples are copied,
+	 * and cleared again afterwards.
+	 *
+	 * @param activations	The activations.
+	 * @param classes		Receives the class index of every frame, or -1
+	 * 						for frames with a missing value on their path.
+	 */
+	public void classify(FrameSet activations, int[] classes) {
+		int dimension = activations.dimension();
+		double[] frame = new double[dimension];
+		if (!activations.isSparse()) {
+			for (int i = 0; i < activations.size(); i++) {
+				activations.copyFrame(i, frame, 0);
+				classes[i] = this.classify(frame, 0);
+			}
+			return;
+		}
+		int[] indices = new int[dimension];
+		double[] values = new double[dimension];
+		for (int i = 0; i < activations.size(); i++) {
+			int count = activations.copyNonZeros(i, indices, values);
+			for (int k = 0; k < count; k++) {
+				frame[indices[k]] = values[k];
+			}
+			classes[i] = this.classify(frame, 0);
+			for (int k = 0; k < count; k++) {
+				frame[indices[k]] = 0;
+			}
+		}
+	}
+
+	public int numNodes() {
+		return this.features.length;
+	}
+
+	public int numClasses() {
+		return this.numClasses;
+	}
+
+	/**
+	 * Flattens a tree depth first.
+	 */
+	private static class Flattener {
+
+		private final Instances header;
+		private final List<Integer> features = new ArrayList<Integer>();
+		private final List<Double> thresholds = new ArrayList<Double>();
+		private final List<Integer> children = new ArrayList<Integer>();
+
+		Flattener(Instances header) {
+			this.header = header;
+		}
+
+		/**
+		 * Adds a node and its subtree.
+		 *
+		 * @param tree		The node.
+		 * @param parent	The split of its parent, which decides the class
+		 * 					of an empty node, or null for the root.
+		 * @param bag		Branch of the parent that leads to the node.
+		 * @return The index of the node.
+		 */
+		int add(ClassifierTree tree, ClassifierSplitModel parent, int bag)
+				throws IllegalAccessException {
+			int node = this.features.size();
+			this.features.add(0);
+			this.thresholds.add(0.0);
+			this.children.add(-1);
+			this.children.add(-1);
+
+			ClassifierSplitModel model =
+					(ClassifierSplitModel) read(tree, "m_localModel");
+			if (parent != null && (Boolean) read(tree, "m_isEmpty")) {
+				// Weka takes the probabilities of the branch of the parent.
+				this.features.set(node, -1 - leafClass(parent, bag));
+			} else if ((Boolean) read(tree, "m_isLeaf")) {
+				if (model.numSubsets() != 1) {
+					throw new IllegalArgumentException(
+							"Leaf with " + model.numSubsets() + " subsets");
+				}
+				this.features.set(node, -1 - leafClass(model, 0));
+			} else {
+				if (!(model instanceof C45Split) || model.numSubsets() != 2) {
+					throw new IllegalArgumentException("Unsupported split "
+							+ model.getClass().getName());
+				}
+				int feature = (Integer) read(model, "m_attIndex");
+				if (!this.header.attribute(feature).isNumeric()) {
+					throw new IllegalArgumentException(
+							"Split on nominal attribute " + feature);
+				}
+				this.features.set(node, feature);
+				this.thresholds.set(node,
+						(Double) read(model, "m_splitPoint"));
+				ClassifierTree[] sons =
+						(ClassifierTree[]) read(tree, "m_sons");
+				for (int i = 0; i < 2; i++) {
+					this.children.set(2 * node + i,
+							this.add(sons[i], model, i));
+				}
+			}
+			return node;
+		}
+
+		/**
+		 * @return The class J48 predicts from branch bag of a model.
+		 */
+		int leafClass(ClassifierSplitModel model, int bag) {
+			Distribution distribution = model.distribution();
+			double maxProb = -1;
+			int maxIndex = 0;
+			for (int j = 0; j < this.header.numClasses(); j++) {
+				double prob = distribution.prob(j, bag);
+				if (prob - maxProb > small) {
+					maxIndex = j;
+					maxProb = prob;
+				}
+			}
+			return maxIndex;
+		}
+
+		DecisionTree toTree() {
+			int size = this.features.size();
+			int[] features = new int[size];
+			double[] thresholds = new double[size];
+			int[] children = new int[2 * size];
+			for (int i = 0; i < size; i++) {
+				features[i] = this.features.get(i);
+				thresholds[i] = this.thresholds.get(i);
+				children[2 * i] = this.children.get(2 * i);
+				children[2 * i + 1] = this.children.get(2 * i + 1);
+			}
+			return new DecisionTree(features, thresholds, children,
+					this.header.numClasses());
+		}
+	}
+
+	/**
+	 * Reads a field that Weka does not expose, declared by the class of the
+	 * object or one of its superclasses.
+	 */
+	private static Object read(Object object, String name)
+			throws IllegalAccessException {
+		for (Class<?> type = object.getClass(); type != null;
+				type = type.getSuperclass()) {
+			try {
+				Field field = type.getDeclaredField(name);
+				field.setAccessible(true);
+				return field.get(object);
+			} catch (NoSuchFieldException e) {
+				// Declared by a superclass.
+			}
+		}
+		throw new IllegalArgumentException(object.getClass().getName()
+				+ " has no field " + name);
+	}
+}
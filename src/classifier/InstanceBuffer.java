@@ -0,0 +1,107 @@
+package classifier;
+
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+import data.FrameSet;
+
+/**
+ * Feeds activations to a Weka classifier one frame at a time.
+ *
+ * The attribute header is built once, and every thread gets one instance
+ * that is reused for all its frames. A Weka instance keeps the array of
+ * values it is created with, so copying a frame into that array is all it
+ * takes to classify the next frame: there is no set of instances, no
+ * instance per frame and no header per call as with activationsToInstances.
+ *
+ * The instances returned by load have a missing class value and change with
+ * the next load on the same thread, so they must only be classified, never
+ * kept.
+ *
+ */
+public final class InstanceBuffer {
+
+	private final Instances header;
+	private final int numOfBasicVectors;
+	private final ThreadLocal<Slot> slots;
+
+	/**
+	 * @param numOfBasicVectors	Number of activations per frame.
+	 * @param className			Name of the class attribute.
+	 * @param classValues		Values of the class attribute.
+	 */
+	public InstanceBuffer(final int numOfBasicVectors, String className,
+			FastVector classValues) {
+		this.header = ClassifierFactory.createHeader(
+				numOfBasicVectors, className, classValues, 0);
+		this.numOfBasicVectors = numOfBasicVectors;
+		this.slots = new ThreadLocal<Slot>() {
+			@Override
+			protected Slot initialValue() {
+				return new Slot(header, numOfBasicVectors);
+			}
+		};
+	}
+
+	/**
+	 * @return Whether the buffer was built for these activations and class.
+	 */
+	public boolean accepts(int numOfBasicVectors, String className,
+			FastVector classValues) {
+		if (numOfBasicVectors != this.numOfBasicVectors
+				|| !className.equals(this.header.classAttribute().name())
+				|| classValues.size() != this.header.numClasses()) {
+			return false;
+		}
+		for (int i = 0; i < classValues.size(); i++) {
+			if (!classValues.elementAt(i).equals(
+					this.header.classAttribute().value(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Copies a frame of activations into the instance of this thread.
+	 *
+	 * @param activations	The activations.
+	 * @param i				Index of the frame.
+	 * @return The instance of this thread, holding frame i.
+	 */
+	public Instance load(FrameSet activations, int i) {
+		Slot slot = this.slots.get();
+		activations.copyFrame(i, slot.values, 0);
+		return slot.instance;
+	}
+
+	/**
+	 * @return The class value with the index returned by a classifier.
+	 */
+	public String label(double classValue) {
+		return this.header.classAttribute().value((int) classValue);
+	}
+
+	/**
+	 * @return The header of the instances, without instances.
+	 */
+	public Instances getHeader() {
+		return this.header;
+	}
+
+	/**
+	 * The instance of a thread and the array holding its values.
+	 */
+	private static final class Slot {
+
+		final double[] values;
+		final Instance instance;
+
+		Slot(Instances header, int numOfBasicVectors) {
+			this.values = new double[numOfBasicVectors + 1];
+			this.values[numOfBasicVectors] = Instance.missingValue();
+			this.instance = new Instance(1.0, this.values);
+			this.instance.setDataset(header);
+		}
+	}
+}
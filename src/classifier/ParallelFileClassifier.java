@@ -0,0 +1,204 @@
+package classifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import data.CorpusLoader;
+import metrics.Counter;
+import metrics.Metrics;
+import util.DaemonThreadFactory;
+
+/**
+ * Classifies many files at once on a pool of worker threads.
+ *
+ * Every file gets its own future, and the futures are returned in the order
+ * of the files, whatever order they finish in. A file that fails does not
+ * affect the others: its error is kept in its result. At most a fixed number
+ * of files is in flight at once, so no more than that many files are held in
+ * memory, however many files are submitted.
+ *
+ */
+public class ParallelFileClassifier {
+
+	/**
+	 * The work to do for a single file.
+	 */
+	public interface FileTask {
+
+		/**
+		 * @return The label of the file, or null if it has none.
+		 */
+		String classify(File file) throws Exception;
+	}
+
+	private static final Counter filesFailed = Metrics.counter(
+			"mlii_files_failed", "Files that could not be classified.");
+
+	private static ParallelFileClassifier defaultClassifier;
+
+	private final ExecutorService executor;
+	private final Semaphore inFlight;
+
+	/**
+	 * @param numberOfThreads	Number of files classified concurrently.
+	 * @param maxFilesInFlight	Maximum number of files submitted but not yet
+	 * 							finished. Submitting blocks at this limit.
+	 */
+	public ParallelFileClassifier(final int numberOfThreads,
+			final int maxFilesInFlight) {
+		if (numberOfThreads < 1 || maxFilesInFlight < numberOfThreads) {
+			throw new IllegalArgumentException("numberOfThreads should be at"
+					+ " least 1 and maxFilesInFlight at least numberOfThreads.");
+		}
+		this.executor = Executors.newFixedThreadPool(numberOfThreads,
+				new DaemonThreadFactory("classify"));
+		this.inFlight = new Semaphore(maxFilesInFlight);
+	}
+
+	/**
+	 * Returns the classifier shared by all batches. It uses one worker thread
+	 * per available core and keeps twice as many files in flight.
+	 *
+	 * @return The default parallel file classifier.
+	 */
+	public static synchronized ParallelFileClassifier getDefault() {
+		if (defaultClassifier == null) {
+			int threads = Runtime.getRuntime().availableProcessors();
+			defaultClassifier = new ParallelFileClassifier(threads, 2*threads);
+		}
+		return defaultClassifier;
+	}
+
+	/**
+	 * Submits every file. Blocks while the maximum number of files is in
+	 * flight.
+	 *
+	 * @param files	The files.
+	 * @param task	The work to do per file.
+	 * @return A future result per file, in the order of the files. The
+	 * 			futures never fail, errors are part of the result.
+	 * @throws InterruptedException
+	 */
+	public List<Future<FileResult>> submit(final List<File> files,
+			final FileTask task) throws InterruptedException {
+		List<Future<FileResult>> futures =
+				new ArrayList<Future<FileResult>>(files.size());
+		for (final File file : files) {
+			this.inFlight.acquire();
+			try {
+				futures.add(this.executor.submit(new Callable<FileResult>() {
+					@Override
+					public FileResult call() {
+						try {
+							return new FileResult(file, task.classify(file),
+									null);
+						} catch (Exception e) {
+							filesFailed.increment();
+							return new FileResult(file, null, e);
+						} finally {
+							inFlight.release();
+						}
+					}
+				}));
+			} catch (RuntimeException e) {
+				this.inFlight.release();
+				throw e;
+			}
+		}
+		return futures;
+	}
+
+	/**
+	 * Classifies every file and waits for all of them.
+	 *
+	 * @param files	The files.
+	 * @param task	The work to do per file.
+	 * @return The result per file, in the order of the files.
+	 * @throws InterruptedException
+	 */
+	public List<FileResult> classify(final List<File> files,
+			final FileTask task) throws InterruptedException {
+		List<FileResult> results = new ArrayList<FileResult>(files.size());
+		for (Future<FileResult> future : this.submit(files, task)) {
+			try {
+				results.add(future.get());
+			} catch (ExecutionException e) {
+				// Cannot happen, the task catches everything.
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Classifies every CSV file in a folder, in the order of their names.
+	 *
+	 * @param folderName	The folder.
+	 * @param task			The work to do per file.
+	 * @return The result per file.
+	 * @throws InterruptedException
+	 */
+	public List<FileResult> classifyFolder(final String folderName,
+			final FileTask task) throws InterruptedException {
+		File[] files;
+		try {
+			files = CorpusLoader.csvFiles(new File(folderName));
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e.getMessage(), e);
+		}
+		return this.classify(Arrays.asList(files), task);
+	}
+
+	/**
+	 * The outcome of a single file: a label, or the error that occurred.
+	 */
+	public static class FileResult {
+
+		private final File file;
+		private final String label;
+		private final Exception error;
+
+		FileResult(File file, String label, Exception error) {
+			this.file = file;
+			this.label = label;
+			this.error = error;
+		}
+
+		public File getFile() {
+			return this.file;
+		}
+
+		/**
+		 * @return The label, or null if the file failed or has none.
+		 */
+		public String getLabel() {
+			return this.label;
+		}
+
+		/**
+		 * @return The error, or null if the file succeeded.
+		 */
+		public Exception getError() {
+			return this.error;
+		}
+
+		public boolean isSuccessful() {
+			return this.error == null;
+		}
+
+		@Override
+		public String toString() {
+			return this.file.getName() + ": " + (this.isSuccessful() ?
+					this.label : "failed (" + this.error + ")");
+		}
+	}
+}
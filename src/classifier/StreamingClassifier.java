@@ -0,0 +1,356 @@
+package classifier;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import weka.core.FastVector;
+import data.Data;
+import data.FrameSet;
+import data.PersonData;
+import data.WalkData;
+
+/**
+ * Classifies a live stream of accelerometer samples window by window.
+ *
+ * Samples are pushed one at a time or in chunks. A ring buffer keeps the
+ * magnitudes of the last window, so a new, overlapping window is complete
+ * every Data.getInstancesBetweenWindows() samples, exactly like the windows
+ * of WalkData. Every window is first classified as walking or not. Walking
+ * windows are then classified by person. Each window is 50 samples of
+ * walking data, the same frame the person classifier gets from the filtered
+ * CSV files.
+ *
+ * Windows are classified in order on a single worker thread, which reports
+ * them to the listener. Pushing blocks while the queue of windows waiting
+ * for the worker is full, so a window is never reported later than the
+ * capacity of the queue plus one windows after it was complete. If the
+ * worker stops before the end of the stream, because it was interrupted or
+ * failed, push and close throw an IllegalStateException instead of waiting
+ * for it.
+ *
+ */
+public class StreamingClassifier {
+
+	/**
+	 * Receives the classified windows, on the worker thread of the
+	 * streaming classifier.
+	 */
+	public interface Listener {
+
+		void windowClassified(WindowLabel label);
+
+		void classificationFailed(long windowIndex, Exception e);
+	}
+
+	// Marks the end of the stream in the queue.
+	private static final PendingWindow endOfStream =
+			new PendingWindow(-1, null, 0, 0, 0);
+
+	private final CodebookClassifier walkClassifier;
+	private final CodebookClassifier personClassifier;
+	private final Listener listener;
+	private final BlockingQueue<PendingWindow> queue;
+	private final Thread worker;
+
+	private final String walkClassName;
+	private final FastVector walkClassValues;
+	private final String personClassName;
+	private final FastVector personClassValues;
+
+	private final int windowSize = Data.getWindowSize();
+	private final int stride = Data.getInstancesBetweenWindows();
+	// Ring buffers with the magnitudes and times of the last window.
+	private final double[] magnitudes = new double[windowSize];
+	private final double[] times = new double[windowSize];
+	private long samples = 0;
+	private long windows = 0;
+	private boolean closed = false;
+	// Set when the worker stops, with the reason if it stopped before the
+	// end of the stream.
+	private volatile boolean stopped = false;
+	private volatile Throwable failure;
+
+	/**
+	 * Creates a streaming classifier and starts its worker thread.
+	 *
+	 * @param walkClassifier	Classifies windows as walking or not.
+	 * @param personClassifier	Classifies walking windows by person.
+	 * @param listener			Receives the classified windows.
+	 * @param capacity			Maximum number of complete windows waiting to
+	 * 							be classified.
+	 */
+	public StreamingClassifier(final CodebookClassifier walkClassifier,
+			final CodebookClassifier personClassifier,
+			final Listener listener, final int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException(
+					"capacity should be at least 1.");
+		}
+		this.walkClassifier = walkClassifier;
+		this.personClassifier = personClassifier;
+		this.listener = listener;
+		this.queue = new ArrayBlockingQueue<PendingWindow>(capacity);
+
+		Data walkData = new WalkData();
+		this.walkClassName = walkData.getClassName();
+		this.walkClassValues = walkData.getClassValues();
+		Data personData = new PersonData();
+		this.personClassName = personData.getClassName();
+		this.personClassValues = personData.getClassValues();
+
+		this.worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				work();
+			}
+		}, "streaming-classifier");
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * Adds a single sample to the stream.
+	 *
+	 * @param t	Time of the sample, in nanoseconds.
+	 * @throws InterruptedException	If interrupted while waiting for room in
+	 * 								the queue.
+	 * @throws IllegalStateException	If the stream is closed or its worker
+	 * 									stopped.
+	 */
+	public synchronized void push(double t, double x, double y, double z)
+			throws InterruptedException {
+		if (this.closed) {
+			throw new IllegalStateException("The stream is closed.");
+		}
+		this.checkWorker();
+		int position = (int) (this.samples % this.windowSize);
+		this.magnitudes[position] = Math.sqrt(x*x + y*y + z*z);
+		this.times[position] = t;
+		this.samples++;
+
+		if (this.samples >= this.windowSize
+				&& (this.samples - this.windowSize) % this.stride == 0) {
+			// Unroll the ring buffer, the oldest sample is next to be
+			// overwritten.
+			double[] frame = new double[this.windowSize];
+			int oldest = (int) (this.samples % this.windowSize);
+			int tail = this.windowSize - oldest;
+			System.arraycopy(this.magnitudes, oldest, frame, 0, tail);
+			System.arraycopy(this.magnitudes, 0, frame, tail, oldest);
+			this.queue.put(new PendingWindow(this.windows++, frame,
+					this.times[oldest], t, System.nanoTime()));
+			// The worker clears the queue when it stops, which may be what
+			// made room for this window.
+			this.checkWorker();
+		}
+	}
+
+	/**
+	 * Adds a chunk of samples to the stream.
+	 *
+	 * @throws InterruptedException	If interrupted while waiting for room in
+	 * 								the queue.
+	 * @throws IllegalStateException	If the stream is closed or its worker
+	 * 									stopped.
+	 */
+	public synchronized void push(double[] t, double[] x, double[] y,
+			double[] z, int offset, int length) throws InterruptedException {
+		for (int i = offset; i < offset + length; i++) {
+			push(t[i], x[i], y[i], z[i]);
+		}
+	}
+
+	/**
+	 * Ends the stream and waits until every complete window is reported.
+	 * Samples that do not complete a window are dropped.
+	 *
+	 * @throws InterruptedException
+	 * @throws IllegalStateException	If the worker stopped before the end
+	 * 									of the stream.
+	 */
+	public void close() throws InterruptedException {
+		synchronized (this) {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+			if (!this.stopped) {
+				this.queue.put(endOfStream);
+			}
+		}
+		this.worker.join();
+		this.checkWorker();
+	}
+
+	/**
+	 * @return The number of complete windows so far.
+	 */
+	public synchronized long getNumberOfWindows() {
+		return this.windows;
+	}
+
+	private void work() {
+		try {
+			while (true) {
+				PendingWindow window = this.queue.take();
+				if (window == endOfStream) {
+					return;
+				}
+				this.classify(window);
+			}
+		} catch (Throwable e) {
+			this.failure = e;
+		} finally {
+			this.stopped = true;
+			// Wakes up a push waiting for room, which then finds the worker
+			// stopped.
+			this.queue.clear();
+		}
+	}
+
+	private void classify(PendingWindow window) {
+		WindowLabel label;
+		try {
+			FrameSet frame = new FrameSet(window.frame, this.windowSize);
+			String walkLabel = this.walkClassifier.getLabels(frame,
+					this.walkClassName, this.walkClassValues).get(0);
+			String personLabel = null;
+			if ("Yes".equals(walkLabel)) {
+				personLabel = this.personClassifier.getLabels(frame,
+						this.personClassName, this.personClassValues)
+						.get(0);
+			}
+			label = new WindowLabel(window.index, window.startTime,
+					window.endTime, walkLabel, personLabel,
+					System.nanoTime() - window.completed);
+		} catch (Exception e) {
+			try {
+				this.listener.classificationFailed(window.index, e);
+			} catch (RuntimeException listenerFailure) {
+				reportListenerFailure(window.index, listenerFailure);
+			}
+			return;
+		}
+		try {
+			this.listener.windowClassified(label);
+		} catch (RuntimeException listenerFailure) {
+			reportListenerFailure(window.index, listenerFailure);
+		}
+	}
+
+	/**
+	 * A listener that throws must not stop the worker, the next windows
+	 * still have to be classified.
+	 */
+	private static void reportListenerFailure(long windowIndex,
+			RuntimeException e) {
+		System.err.println("Listener failed on window " + windowIndex + ": "
+				+ e);
+	}
+
+	/**
+	 * @throws IllegalStateException	If the worker stopped before the end
+	 * 									of the stream.
+	 */
+	private void checkWorker() {
+		if (this.stopped && this.failure != null) {
+			throw new IllegalStateException(
+					"The worker of the stream stopped.", this.failure);
+		}
+	}
+
+	/**
+	 * A complete window waiting for the worker.
+	 */
+	private static class PendingWindow {
+
+		final long index;
+		final double[] frame;
+		final double startTime;
+		final double endTime;
+		final long completed;
+
+		PendingWindow(long index, double[] frame, double startTime,
+				double endTime, long completed) {
+			this.index = index;
+			this.frame = frame;
+			this.startTime = startTime;
+			this.endTime = endTime;
+			this.completed = completed;
+		}
+	}
+
+	/**
+	 * The labels of a single window of the stream.
+	 */
+	public static class WindowLabel {
+
+		private final long index;
+		private final double startTime;
+		private final double endTime;
+		private final String walkLabel;
+		private final String personLabel;
+		private final long latency;
+
+		WindowLabel(long index, double startTime, double endTime,
+				String walkLabel, String personLabel, long latency) {
+			this.index = index;
+			this.startTime = startTime;
+			this.endTime = endTime;
+			this.walkLabel = walkLabel;
+			this.personLabel = personLabel;
+			this.latency = latency;
+		}
+
+		/**
+		 * @return Index of the window in the stream, starting at 0.
+		 */
+		public long getIndex() {
+			return this.index;
+		}
+
+		/**
+		 * @return Time of the first sample of the window.
+		 */
+		public double getStartTime() {
+			return this.startTime;
+		}
+
+		/**
+		 * @return Time of the last sample of the window.
+		 */
+		public double getEndTime() {
+			return this.endTime;
+		}
+
+		/**
+		 * @return Yes if the window is walking, No otherwise.
+		 */
+		public String getWalkLabel() {
+			return this.walkLabel;
+		}
+
+		/**
+		 * @return The person walking, or null if the window is not walking.
+		 */
+		public String getPersonLabel() {
+			return this.personLabel;
+		}
+
+		/**
+		 * @return Nanoseconds from the last sample of the window being pushed
+		 * until it was classified.
+		 */
+		public long getLatency() {
+			return this.latency;
+		}
+
+		@Override
+		public String toString() {
+			return "Window " + this.index + ": walking " + this.walkLabel
+					+ (this.personLabel == null ? "" :
+						", person " + this.personLabel)
+					+ " (" + this.latency / 1000000 + "ms)";
+		}
+	}
+}
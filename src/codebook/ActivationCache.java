@@ -0,0 +1,497 @@
+package codebook;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import metrics.Counter;
+import metrics.Metrics;
+
+/**
+ * Remembers the activations of frames, so a frame that was activated before
+ * with the same codebook is not solved again.
+ *
+ * An activation is keyed by the fingerprint of the codebook, which covers
+ * the basis vectors and alpha, and by a hash of the samples of the frame.
+ * The cache keeps at most a given number of bytes of activations in memory
+ * and evicts the least recently used ones beyond that.
+ *
+ * Every codebook has a file in the folder of the cache, named after its
+ * fingerprint. It is read the first time the codebook activates frames, and
+ * new activations are appended to it after every activation. A file that
+ * holds more than fits in memory, or that ends in a damaged record, is
+ * rewritten with the activations that were kept when it is read:
+ *
+ * <pre>
+ * int       magic ("ACTC")
+ * int       version
+ * int       number of coefficients of an activation
+ * then per frame:
+ * long[2]   hash of the frame
+ * int       number of nonzero coefficients n
+ * int[n]    indices of the nonzero coefficients
+ * double[n] nonzero coefficients
+ * int       CRC32 of the above
+ * </pre>
+ *
+ * Only frames activated from zero are cached, a warm started activation
+ * depends on the frame before it.
+ *
+ */
+public final class ActivationCache {
+
+	static final int magic = 0x41435443; // "ACTC"
+	// Also raised when the solver changes, so activations solved before are
+	// solved again.
+	private static final int version = 1;
+	private static final String extension = ".act";
+	private static final int headerLength = 12;
+	// Hash and number of coefficients.
+	private static final int recordHeaderLength = 20;
+	// Estimated bytes of an entry besides its coefficients: key, entry,
+	// arrays and the link in the map.
+	private static final int entryOverhead = 160;
+
+	private static final Counter hits = Metrics.counter(
+			"mlii_activation_cache_hits",
+			"Frames whose activation was found in the cache.");
+	private static final Counter misses = Metrics.counter(
+			"mlii_activation_cache_misses",
+			"Frames whose activation was not in the cache.");
+	private static final Counter evictions = Metrics.counter(
+			"mlii_activation_cache_evictions",
+			"Activations evicted from the cache to stay within its size.");
+	private static final Counter loaded = Metrics.counter(
+			"mlii_activation_cache_loaded",
+			"Activations read from the files of the cache.");
+
+	private static volatile ActivationCache defaultCache;
+
+	private static final ThreadLocal<Hasher> hashers =
+			new ThreadLocal<Hasher>() {
+				@Override
+				protected Hasher initialValue() {
+					return new Hasher();
+				}
+			};
+
+	private final File folder;
+	private final long maxBytes;
+	// In access order, so the eldest entry is the least recently used.
+	private final LinkedHashMap<Key, Entry> entries =
+			new LinkedHashMap<Key, Entry>(1024, 0.75f, true);
+	private long bytes;
+	private long evicted;
+	// Codebooks whose file was read, and their activations not written yet.
+	private final Set<String> opened = new HashSet<String>();
+	private final Map<String, List<Key>> pending =
+			new HashMap<String, List<Key>>();
+
+	/**
+	 * @param folder	Folder holding the files of the cache, or null to
+	 * 					keep activations in memory only.
+	 * @param maxBytes	Maximum number of bytes of activations in memory.
+	 */
+	public ActivationCache(File folder, long maxBytes) {
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException(
+					"maxBytes should not be negative.");
+		}
+		this.folder = folder;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the cache used by Codebook.activate, or null if activations
+	 * are not cached, which is the case until a cache is set.
+	 */
+	public static ActivationCache getDefault() {
+		return defaultCache;
+	}
+
+	public static void setDefault(ActivationCache cache) {
+		defaultCache = cache;
+	}
+
+	/**
+	 * @return The number of activations in memory.
+	 */
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * @return The estimated number of bytes of the activations in memory.
+	 */
+	public synchronized long bytes() {
+		return this.bytes;
+	}
+
+	/**
+	 * Reads the activations of a codebook from its file, unless it was read
+	 * before. A file that cannot be read is reported and replaced.
+	 *
+	 * @param codebook	Fingerprint of the codebook.
+	 * @param dimension	Number of coefficients of an activation.
+	 */
+	synchronized void open(String codebook, int dimension) {
+		if (this.folder == null || !this.opened.add(codebook)) {
+			return;
+		}
+		File file = this.file(codebook);
+		if (!file.exists()) {
+			return;
+		}
+		boolean complete;
+		try {
+			complete = this.read(file, dimension);
+		} catch (IOException e) {
+			System.out.println("Activation cache " + file.getName()
+					+ " is corrupt, starting over.");
+			complete = false;
+		}
+		if (!complete) {
+			try {
+				this.rewrite(file, codebook, dimension);
+			} catch (IOException e) {
+				System.out.println("Failed to rewrite activation cache "
+						+ file.getName() + ". Continuing execution.");
+			}
+		}
+	}
+
+	/**
+	 * Returns the key of the activation of a frame.
+	 *
+	 * @param codebook	Fingerprint of the codebook.
+	 * @param frame		The samples of the frame.
+	 */
+	static Key key(String codebook, double[] frame) {
+		return hashers.get().key(codebook, frame);
+	}
+
+	/**
+	 * @return The cached activation of a frame, or null. Its arrays are
+	 * 			shared with the cache and must not be changed.
+	 */
+	Entry get(Key key) {
+		Entry entry;
+		synchronized (this) {
+			entry = this.entries.get(key);
+		}
+		if (entry == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return entry;
+	}
+
+	/**
+	 * Adds the activation of a frame, to be written to disk by the next
+	 * flush. The arrays must not be changed afterwards.
+	 *
+	 * @param key		Key of the frame.
+	 * @param indices	The indices of the nonzero coefficients.
+	 * @param values	The nonzero coefficients.
+	 */
+	synchronized void put(Key key, int[] indices, double[] values) {
+		if (this.insert(key, new Entry(indices, values))
+				&& this.folder != null) {
+			List<Key> keys = this.pending.get(key.codebook);
+			if (keys == null) {
+				keys = new ArrayList<Key>();
+				this.pending.put(key.codebook, keys);
+			}
+			keys.add(key);
+		}
+	}
+
+	/**
+	 * Appends the activations of a codebook added since the last flush to
+	 * its file, except those evicted in the meantime. If the file cannot be
+	 * written, this is reported and the activations stay in memory only.
+	 *
+	 * @param codebook	Fingerprint of the codebook.
+	 * @param dimension	Number of coefficients of an activation.
+	 */
+	synchronized void flush(String codebook, int dimension) {
+		List<Key> keys = this.pending.remove(codebook);
+		if (keys == null) {
+			return;
+		}
+		File file = this.file(codebook);
+		try {
+			this.folder.mkdirs();
+			boolean create = !file.exists();
+			OutputStream output = new BufferedOutputStream(
+					new FileOutputStream(file, true));
+			try {
+				if (create) {
+					writeHeader(output, dimension);
+				}
+				for (Key key : keys) {
+					Entry entry = this.entries.get(key);
+					if (entry != null) {
+						writeRecord(output, key, entry);
+					}
+				}
+			} finally {
+				output.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Failed to write activation cache "
+					+ file.getName() + ". Continuing execution.");
+		}
+	}
+
+	/**
+	 * Adds an entry and evicts the least recently used ones beyond the
+	 * size of the cache.
+	 *
+	 * @return Whether the entry is new and was not evicted right away.
+	 */
+	private boolean insert(Key key, Entry entry) {
+		Entry previous = this.entries.put(key, entry);
+		if (previous != null) {
+			this.bytes -= previous.bytes();
+		}
+		this.bytes += entry.bytes();
+		Iterator<Entry> eldest = this.entries.values().iterator();
+		while (this.bytes > this.maxBytes && eldest.hasNext()) {
+			this.bytes -= eldest.next().bytes();
+			eldest.remove();
+			this.evicted++;
+			evictions.increment();
+		}
+		return previous == null && this.entries.containsKey(key);
+	}
+
+	/**
+	 * Reads the activations in a file into memory.
+	 *
+	 * @return Whether every record was read and kept.
+	 * @throws IOException	If the file is not an activation file of this
+	 * 						version and dimension.
+	 */
+	private boolean read(File file, int dimension) throws IOException {
+		String codebook = file.getName().substring(0,
+				file.getName().length() - extension.length());
+		DataInputStream input = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (input.readInt() != magic || input.readInt() != version
+					|| input.readInt() != dimension) {
+				throw new IOException(file + " is not an activation file.");
+			}
+			long evictedBefore = this.evicted;
+			byte[] header = new byte[recordHeaderLength];
+			CRC32 crc = new CRC32();
+			while (true) {
+				try {
+					if (!readRecordHeader(input, header)) {
+						return this.evicted == evictedBefore;
+					}
+					ByteBuffer head = ByteBuffer.wrap(header);
+					Key key = new Key(codebook, head.getLong(),
+							head.getLong());
+					int count = head.getInt();
+					if (count < 0 || count > dimension) {
+						return false;
+					}
+					byte[] body = new byte[12*count + 4];
+					input.readFully(body);
+					crc.reset();
+					crc.update(header);
+					crc.update(body, 0, 12*count);
+					ByteBuffer data = ByteBuffer.wrap(body);
+					if (data.getInt(12*count) != (int) crc.getValue()) {
+						return false;
+					}
+					int[] indices = new int[count];
+					double[] values = new double[count];
+					data.asIntBuffer().get(indices);
+					data.position(4*count);
+					data.asDoubleBuffer().get(values);
+					this.insert(key, new Entry(indices, values));
+					loaded.increment();
+				} catch (EOFException e) {
+					// The last record was not written completely.
+					return false;
+				}
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Reads the hash and number of coefficients of the next record.
+	 *
+	 * @return False at the end of the file.
+	 * @throws EOFException	If the file ends within the record.
+	 */
+	private static boolean readRecordHeader(DataInputStream input,
+			byte[] header) throws IOException {
+		int first = input.read();
+		if (first < 0) {
+			return false;
+		}
+		header[0] = (byte) first;
+		input.readFully(header, 1, header.length - 1);
+		return true;
+	}
+
+	/**
+	 * Replaces a file by the activations of its codebook in memory.
+	 */
+	private void rewrite(File file, String codebook, int dimension)
+			throws IOException {
+		File temporary = new File(file.getPath() + ".tmp");
+		OutputStream output = new BufferedOutputStream(
+				new FileOutputStream(temporary));
+		try {
+			writeHeader(output, dimension);
+			for (Map.Entry<Key, Entry> mapping : this.entries.entrySet()) {
+				if (mapping.getKey().codebook.equals(codebook)) {
+					writeRecord(output, mapping.getKey(), mapping.getValue());
+				}
+			}
+		} finally {
+			output.close();
+		}
+		Files.move(temporary.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		this.pending.remove(codebook);
+	}
+
+	private File file(String codebook) {
+		return new File(this.folder, codebook + extension);
+	}
+
+	private static void writeHeader(OutputStream output, int dimension)
+			throws IOException {
+		output.write(ByteBuffer.allocate(headerLength).putInt(magic)
+				.putInt(version).putInt(dimension).array());
+	}
+
+	private static void writeRecord(OutputStream output, Key key,
+			Entry entry) throws IOException {
+		int count = entry.indices.length;
+		ByteBuffer record = ByteBuffer.allocate(
+				recordHeaderLength + 12*count + 4);
+		record.putLong(key.high).putLong(key.low).putInt(count);
+		for (int index : entry.indices) {
+			record.putInt(index);
+		}
+		for (double value : entry.values) {
+			record.putDouble(value);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, record.position());
+		record.putInt((int) crc.getValue());
+		output.write(record.array());
+	}
+
+	/**
+	 * Identifies the activation of a frame by a codebook: the fingerprint of
+	 * the codebook and the first 128 bits of the SHA-256 hash of the frame.
+	 */
+	static final class Key {
+
+		final String codebook;
+		final long high;
+		final long low;
+
+		Key(String codebook, long high, long low) {
+			this.codebook = codebook;
+			this.high = high;
+			this.low = low;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) object;
+			return this.high == other.high && this.low == other.low
+					&& this.codebook.equals(other.codebook);
+		}
+
+		@Override
+		public int hashCode() {
+			// The hash of the frame is already uniform.
+			return (int) this.high;
+		}
+	}
+
+	/**
+	 * The nonzero coefficients of an activation.
+	 */
+	static final class Entry {
+
+		final int[] indices;
+		final double[] values;
+
+		Entry(int[] indices, double[] values) {
+			this.indices = indices;
+			this.values = values;
+		}
+
+		long bytes() {
+			return entryOverhead + 12L*this.indices.length;
+		}
+	}
+
+	/**
+	 * Hashes frames on one thread.
+	 */
+	private static final class Hasher {
+
+		private final MessageDigest digest;
+		private ByteBuffer bytes = ByteBuffer.allocate(0);
+
+		Hasher() {
+			try {
+				this.digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				// Every Java platform supports SHA-256.
+				throw new IllegalStateException(e);
+			}
+		}
+
+		Key key(String codebook, double[] frame) {
+			if (this.bytes.capacity() != 8*frame.length) {
+				this.bytes = ByteBuffer.allocate(8*frame.length);
+			}
+			this.bytes.clear();
+			for (double value : frame) {
+				this.bytes.putDouble(value);
+			}
+			ByteBuffer hash = ByteBuffer.wrap(
+					this.digest.digest(this.bytes.array()));
+			return new Key(codebook, hash.getLong(), hash.getLong());
+		}
+	}
+}
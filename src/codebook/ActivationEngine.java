@@ -0,0 +1,265 @@
+package codebook;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import data.FrameSet;
+import metrics.Histogram;
+import metrics.Metrics;
+import util.Kernels;
+import util.WorkerPool;
+
+/**
+ * Activates the frames of a frame set on a bounded pool of worker threads.
+ *
+ * The frames are split into contiguous chunks. Every chunk is solved by a
+ * single worker, one frame after the other, and the activations are written
+ * back in frame order, so the result does not depend on the number of threads
+ * or on the order in which the chunks finish. Within a chunk, a frame can be
+ * warm started from the activation of the frame before it.
+ *
+ * Activations are mostly zero. activateFrames keeps only the nonzero
+ * coefficients of every frame as soon as it is solved, and returns a sparse
+ * frame set unless the activations turn out dense. Given an activation
+ * cache, it solves only the frames that are not cached yet.
+ *
+ */
+public class ActivationEngine {
+
+	// Chunks smaller than this are not worth handing to another thread.
+	private static final int minimumChunkSize = 8;
+	// Number of chunks per thread, to balance frames that solve slowly.
+	private static final int chunksPerThread = 4;
+	// Activations with at most this fraction of nonzero coefficients are
+	// kept sparse. Compressed sparse rows take 12 bytes per nonzero
+	// coefficient, dense frames 8 bytes per coefficient.
+	private static final double maxSparseDensity = 0.5;
+
+	private static final Histogram nonZeros = Metrics.histogram(
+			"mlii_activation_nonzeros",
+			"Nonzero coefficients of the activation of a frame.");
+
+	private static ActivationEngine defaultEngine;
+
+	private final int numberOfThreads;
+	private final WorkerPool workers;
+
+	/**
+	 * Creates an activation engine with its own pool of worker threads.
+	 *
+	 * @param numberOfThreads	Maximum number of frames solved concurrently.
+	 */
+	public ActivationEngine(final int numberOfThreads) {
+		if (numberOfThreads < 1) {
+			throw new IllegalArgumentException(
+					"numberOfThreads should be at least 1.");
+		}
+		this.numberOfThreads = numberOfThreads;
+		this.workers = new WorkerPool("activation", numberOfThreads);
+	}
+
+	/**
+	 * Returns the engine shared by all codebooks. It uses one worker thread
+	 * per available core.
+	 *
+	 * @return The default activation engine.
+	 */
+	public static synchronized ActivationEngine getDefault() {
+		if (defaultEngine == null) {
+			defaultEngine = new ActivationEngine(
+					Runtime.getRuntime().availableProcessors());
+		}
+		return defaultEngine;
+	}
+
+	public int getNumberOfThreads() {
+		return this.numberOfThreads;
+	}
+
+	/**
+	 * Activates every frame of the batch with the given solver.
+	 *
+	 * @param solver	Solver for the codebook to activate the frames with.
+	 * @param batch		Frames to activate.
+	 * @param warmStart	Whether each frame starts from the activation of the
+	 * 					frame before it. Only useful if consecutive frames
+	 * 					overlap.
+	 * @return	Activation vector of every frame, indexed by frame.
+	 */
+	double[][] activate(final FrameSolver solver, final FrameSet batch,
+			final boolean warmStart) {
+		final double[][] activations = new double[batch.size()][];
+		this.run(batch.size(), new Chunk() {
+			@Override
+			public void solve(int from, int to) {
+				solveChunk(solver, batch, warmStart, activations, from, to);
+			}
+		});
+		return activations;
+	}
+
+	/**
+	 * Activates every frame of the batch with the given solver, keeping only
+	 * the nonzero coefficients of every activation.
+	 *
+	 * @param solver	Solver for the codebook to activate the frames with.
+	 * @param batch		Frames to activate.
+	 * @param warmStart	Whether each frame starts from the activation of the
+	 * 					frame before it.
+	 * @param dimension	Number of coefficients of an activation.
+	 * @return	The activations, sparse if at most half of their
+	 * 			coefficients are nonzero.
+	 */
+	FrameSet activateFrames(FrameSolver solver, FrameSet batch,
+			boolean warmStart, int dimension) {
+		return this.activateFrames(solver, batch, warmStart, dimension,
+				null, null);
+	}
+
+	/**
+	 * Activates every frame of the batch from zero, taking the activations
+	 * of the frames that are in the cache from there and adding the others.
+	 *
+	 * @param solver	Solver for the codebook to activate the frames with.
+	 * @param batch		Frames to activate.
+	 * @param dimension	Number of coefficients of an activation.
+	 * @param cache		The cache.
+	 * @param codebook	Fingerprint of the codebook of the solver.
+	 * @return	The activations, sparse if at most half of their
+	 * 			coefficients are nonzero.
+	 */
+	FrameSet activateFrames(FrameSolver solver, FrameSet batch,
+			int dimension, ActivationCache cache, String codebook) {
+		return this.activateFrames(solver, batch, false, dimension, cache,
+				codebook);
+	}
+
+	private FrameSet activateFrames(final FrameSolver solver,
+			final FrameSet batch, final boolean warmStart, int dimension,
+			final ActivationCache cache, final String codebook) {
+		final int[][] indices = new int[batch.size()][];
+		final double[][] values = new double[batch.size()][];
+		this.run(batch.size(), new Chunk() {
+			@Override
+			public void solve(int from, int to) {
+				solveSparseChunk(solver, batch, warmStart, cache, codebook,
+						indices, values, from, to);
+			}
+		});
+		return toFrameSet(indices, values, dimension);
+	}
+
+	/**
+	 * Solves the frames 0 up to size in chunks, on the worker threads if
+	 * there are enough frames.
+	 */
+	private void run(int size, final Chunk chunk) {
+		int numberOfChunks = Math.min(this.numberOfThreads * chunksPerThread,
+				size / minimumChunkSize);
+		if (numberOfChunks <= 1) {
+			// Not worth the hand-off, solve on the calling thread.
+			chunk.solve(0, size);
+			return;
+		}
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(
+				numberOfChunks);
+		for (int k = 0; k < numberOfChunks; k++) {
+			final int from = (int) ((long) size * k / numberOfChunks);
+			final int to = (int) ((long) size * (k+1) / numberOfChunks);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					chunk.solve(from, to);
+					return null;
+				}
+			});
+		}
+		this.workers.invokeAll(tasks);
+	}
+
+	private static void solveChunk(FrameSolver solver, FrameSet batch,
+			boolean warmStart, double[][] activations, int from, int to) {
+		double[] frame = new double[batch.dimension()];
+		double[] previous = null;
+		for (int i = from; i < to; i++) {
+			batch.copyFrame(i, frame, 0);
+			activations[i] = solver.solve(frame, warmStart ? previous : null);
+			previous = activations[i];
+		}
+	}
+
+	private static void solveSparseChunk(FrameSolver solver, FrameSet batch,
+			boolean warmStart, ActivationCache cache, String codebook,
+			int[][] indices, double[][] values, int from, int to) {
+		double[] frame = new double[batch.dimension()];
+		double[] previous = null;
+		for (int i = from; i < to; i++) {
+			batch.copyFrame(i, frame, 0);
+			ActivationCache.Key key = null;
+			if (cache != null) {
+				key = ActivationCache.key(codebook, frame);
+				ActivationCache.Entry cached = cache.get(key);
+				if (cached != null) {
+					indices[i] = cached.indices;
+					values[i] = cached.values;
+					continue;
+				}
+			}
+			double[] activation =
+					solver.solve(frame, warmStart ? previous : null);
+			int count = Kernels.countNonZeros(activation, 0,
+					activation.length);
+			indices[i] = new int[count];
+			values[i] = new double[count];
+			Kernels.compress(activation, 0, activation.length, indices[i],
+					values[i]);
+			nonZeros.record(count);
+			if (key != null) {
+				cache.put(key, indices[i], values[i]);
+			}
+			previous = activation;
+		}
+	}
+
+	/**
+	 * Puts the nonzero coefficients of all frames in a single frame set,
+	 * in compressed sparse rows or dense, whichever is smaller.
+	 */
+	private static FrameSet toFrameSet(int[][] indices, double[][] values,
+			int dimension) {
+		int size = indices.length;
+		long count = 0;
+		for (int[] frame : indices) {
+			count += frame.length;
+		}
+		if (count <= maxSparseDensity * size * dimension) {
+			int[] offsets = new int[size + 1];
+			int[] allIndices = new int[(int) count];
+			double[] allValues = new double[(int) count];
+			for (int i = 0; i < size; i++) {
+				int length = indices[i].length;
+				System.arraycopy(indices[i], 0, allIndices, offsets[i], length);
+				System.arraycopy(values[i], 0, allValues, offsets[i], length);
+				offsets[i + 1] = offsets[i] + length;
+			}
+			return new FrameSet(offsets, allIndices, allValues, dimension);
+		}
+		double[] data = new double[size * dimension];
+		for (int i = 0; i < size; i++) {
+			for (int k = 0; k < indices[i].length; k++) {
+				data[i * dimension + indices[i][k]] = values[i][k];
+			}
+		}
+		return new FrameSet(data, dimension);
+	}
+
+	/**
+	 * Solves a contiguous range of frames.
+	 */
+	private interface Chunk {
+
+		void solve(int from, int to);
+	}
+}
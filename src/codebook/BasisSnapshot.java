@@ -0,0 +1,125 @@
+package codebook;
+
+import java.util.Arrays;
+
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealMatrix;
+
+import util.Kernels;
+
+/**
+ * Immutable copy of the basis vectors of a codebook in a flat primitive
+ * array, together with products derived from it.
+ *
+ * The basis is stored column by column: basis vector j occupies the
+ * entries j*n up to (j+1)*n, with n the dimension. Derived products are
+ * computed the first time they are needed and kept for as long as the
+ * snapshot lives. The arrays returned by a snapshot are shared and must not
+ * be modified.
+ *
+ */
+final class BasisSnapshot {
+
+	private final int dimension;
+	private final int size;
+	private final double[] columns;
+
+	// Derived products, computed on first use.
+	private volatile double[] gram;
+	private volatile double[][] rows;
+
+	/**
+	 * Copies the given n x s basis.
+	 *
+	 * @param basis	Matrix with the basis vectors as columns.
+	 */
+	BasisSnapshot(RealMatrix basis) {
+		this.dimension = basis.getRowDimension();
+		this.size = basis.getColumnDimension();
+		this.columns = new double[size * dimension];
+		for (int j = 0; j < size; j++) {
+			for (int i = 0; i < dimension; i++) {
+				columns[j*dimension + i] = basis.getEntry(i, j);
+			}
+		}
+	}
+
+	/**
+	 * @return The dimension n of the basis vectors.
+	 */
+	int dimension() {
+		return dimension;
+	}
+
+	/**
+	 * @return The number s of basis vectors.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the basis column by column. Read as a row-major s x n matrix,
+	 * this is the transposed basis $B^T$.
+	 */
+	double[] columns() {
+		return columns;
+	}
+
+	/**
+	 * @return A copy of basis vector j.
+	 */
+	ArrayRealVector column(int j) {
+		return new ArrayRealVector(columns, j*dimension, dimension);
+	}
+
+	/**
+	 * Returns the row-major s x s Gram matrix $B^TB$.
+	 */
+	double[] gram() {
+		double[] result = gram;
+		if (result == null) {
+			// The columns read as a row-major matrix are B^T, so this is
+			// B^T*(B^T)^T.
+			result = new double[size * size];
+			Kernels.gemmTransposed(columns, size, columns, size, dimension,
+					result);
+			gram = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the basis as an n x s array of rows, the layout smile expects.
+	 */
+	double[][] rows() {
+		double[][] result = rows;
+		if (result == null) {
+			result = new double[dimension][size];
+			for (int j = 0; j < size; j++) {
+				for (int i = 0; i < dimension; i++) {
+					result[i][j] = columns[j*dimension + i];
+				}
+			}
+			rows = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Computes the reconstruction B*a of an activation vector.
+	 *
+	 * @param activation	Coefficients, one per basis vector.
+	 * @param result		Array of length n receiving the reconstruction.
+	 */
+	void reconstruct(double[] activation, double[] result) {
+		Arrays.fill(result, 0);
+		for (int j = 0; j < size; j++) {
+			double coefficient = activation[j];
+			if (coefficient != 0) {
+				Kernels.axpy(coefficient, columns, j*dimension, result, 0,
+						dimension);
+			}
+		}
+	}
+}
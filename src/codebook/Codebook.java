@@ -1,13 +1,16 @@
 package codebook;
 
-import java.io.OutputStream;
-import java.io.PrintStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 import org.apache.commons.math3.linear.Array2DRowRealMatrix;
@@ -22,13 +25,43 @@ import smile.clustering.linkage.CompleteLinkage;
 import smile.math.Math;
 import smile.regression.LASSO;
 import data.FrameSet;
+import metrics.Counter;
+import metrics.Metrics;
+import metrics.Timer;
+import util.Kernels;
 
 
 public class Codebook implements Serializable {
 
 	private static final long serialVersionUID = 1L;
+	
 	RealMatrix basisVectors;
 	double alpha;
+	// Derived from basisVectors (and alpha), dropped by basisChanged().
+	private transient volatile BasisSnapshot snapshot;
+	private transient volatile SparseCoder sparseCoder;
+	private transient volatile String fingerprint;
+	
+	// Pruning by getMostInformativeSubset: one cluster per this many basis
+	// vectors, the fraction kept per cluster and the number of entropy
+	// buckets. Change subsetVersion whenever the pruning changes, so
+	// pruned codebooks cached on disk are not used anymore.
+	private static final int vectorsPerCluster = 10;
+	private static final double subsetFraction = 0.9;
+	private static final int entropyBuckets = 10;
+	private static final int subsetVersion = 1;
+	
+	private static final Timer activateTimer = Metrics.timer(
+			"mlii_activate_seconds", "Time to activate a set of frames.");
+	private static final Counter framesActivated = Metrics.counter(
+			"mlii_frames_activated", "Frames activated with a codebook.");
+	
+	// Convergence monitoring when no monitor is given.
+	private static final int defaultSampleSize = 1000;
+	private static final int defaultPatience = 2;
+	// One refinement without sufficient improvement ends batch learning, as
+	// it always has for callers that give a threshold instead of a monitor.
+	private static final int thresholdPatience = 1;
 	
 	/**
 	 * Initializes a codebook with a certain dimension and size (number
@@ -94,6 +127,15 @@ public class Codebook implements Serializable {
 			i++;
 		}
 	}
+
+	/**
+	 * Creates a codebook with the given column-major basis, as read from a
+	 * codebook file.
+	 */
+	Codebook(double[] columns, int dimension, int size, double alpha){
+		this.alpha = alpha;
+		setBasis(columns, dimension, size);
+	}
 	
 	/**
 	 * Learns the codebook basis vectors using a frame set of unlabeled data.
@@ -120,64 +162,257 @@ public class Codebook implements Serializable {
 	 * 					alpha encourage accuracy of basis vectors. Large values
 	 * 					(close to one) of alpha encourage sparse solutions, 
 	 * 					where the activations have a smalll L1-norm.
+	 * 
+	 * The reconstruction error is estimated on a reservoir sample of 1000
+	 * frames instead of on all frames, see ConvergenceMonitor. Learning stops
+	 * after the first refinement whose drop in error is below the threshold.
 	 */
 	public void learnUnlabeledData(FrameSet unlabeledData, 
 			String partitionStyle, int partitionOption, 
 			double convergenceThreshold, double alpha){
-		double previousDistance = Double.MAX_VALUE;
+		learnUnlabeledData(unlabeledData, partitionStyle, partitionOption,
+				new ConvergenceMonitor(defaultSampleSize, thresholdPatience,
+						convergenceThreshold), alpha);
+	}
+	
+	/**
+	 * Learns the codebook basis vectors using a frame set of unlabeled data,
+	 * stopping when the given monitor decides learning has converged. After
+	 * every refinement, the monitor estimates the reconstruction error on its
+	 * reservoir sample of the data.
+	 * 
+	 * @param unlabeledData		The unlabeled data to learn the codebook.
+	 * @param partitionStyle	Partition style, see above.
+	 * @param partitionOption	Partitioning option, see above.
+	 * @param monitor			Decides when learning has converged.
+	 * @param alpha				The regularization parameter, see above.
+	 */
+	public void learnUnlabeledData(FrameSet unlabeledData, 
+			String partitionStyle, int partitionOption, 
+			ConvergenceMonitor monitor, double alpha){
 		this.alpha = alpha;
+		basisChanged();
 		boolean converged = false;
 		
+		FrameSet trainingData = monitor.drawSample(unlabeledData);
 		List<FrameSet> batches;
 		
 		while(!converged){
 			System.out.println("Refining codebook...");
 			
-			batches = unlabeledData.partition(partitionStyle, partitionOption);
+			batches = trainingData.partition(partitionStyle, partitionOption);
 			// To show progress...
 			int nbBatches = batches.size();
 			double lastPercentage = -1;
 			int batchesDone = 0;
+			boolean estimated = false;
 			long startTime = System.nanoTime();
 			for(FrameSet batch : batches){
 				double percentage=Math.floor((double)batchesDone/nbBatches*100);
 				if(percentage != lastPercentage){
 					System.out.println("Progress: " + percentage + "%");
 					lastPercentage = percentage;
-					if(percentage == 1.0){
-						long endTime = System.nanoTime();
+					if(!estimated && batchesDone > 0){
+						// The remaining batches take as long per batch as
+						// the ones done so far.
+						long elapsed = System.nanoTime() - startTime;
 						System.out.println("Expected time to finish: " + 
-						((startTime- endTime)/10000000) + "seconds");
+						(elapsed*(nbBatches-batchesDone)/batchesDone/1000000000)
+						+ " seconds");
+						estimated = true;
 					}
 				}
 				
-				Array2DRowRealMatrix activationForBatch = l1RegularizedLassoSolve(batch);
+				// Batches are drawn at random, there is no overlap to
+				// warm start from.
+				FrameSet activationForBatch = 
+						l1RegularizedLassoSolve(batch, 
+								ActivationEngine.getDefault(),
+								getSparseCoder(), false);
 				improveWithLeastSquaresSolve(batch, activationForBatch);
 				
 				batchesDone++;
 			}
 			
-			System.out.println("Activating unlabeled data...");
-			FrameSet activations = activate(unlabeledData);
-			System.out.println("Calculating reconstruction error...");
-			double currentDistance = getAverageRegularizedReconstructionError(
-					unlabeledData, activations);
+			System.out.println("Estimating reconstruction error...");
+			converged = monitor.update(monitor.estimate(this));
+		}
+	}
+	
+	/**
+	 * Learns the codebook basis vectors with online dictionary learning, see
+	 * Mairal et al., "Online dictionary learning for sparse coding" (ICML 2009).
+	 * 
+	 * The frames are processed in random mini-batches. Each batch is
+	 * activated with the current codebook, after which the running sufficient
+	 * statistics $A = sum a*a^T$ and $C = sum x*a^T$ of all batches seen so far
+	 * are updated, and every basis vector is updated once by block coordinate
+	 * descent on these statistics. Unlike learnUnlabeledData, the codebook
+	 * does not forget the earlier batches, and one epoch costs time linear in
+	 * the number of frames.
+	 * 
+	 * The error of an epoch is the average regularized reconstruction error
+	 * of the frames as they were activated during that epoch, so no extra pass
+	 * over the data is needed to decide whether to stop.
+	 * 
+	 * @param unlabeledData		The unlabeled data to learn the codebook.
+	 * 
+	 * @param batchSize		Number of frames in a mini-batch.
+	 * 
+	 * @param maxEpochs		Maximum number of passes over the data.
+	 * 
+	 * @param convergenceThreshold	The drop in the regularized reconstruction
+	 * 								error between two consecutive epochs needs
+	 * 								to be smaller than this threshold to imply
+	 * 								convergence and stop learning.
+	 * 
+	 * @param alpha		The regularization parameter, see learnUnlabeledData.
+	 */
+	public void learnOnline(FrameSet unlabeledData, int batchSize,
+			int maxEpochs, double convergenceThreshold, double alpha){
+		learnOnline(unlabeledData, batchSize, maxEpochs,
+				new ConvergenceMonitor(defaultSampleSize, defaultPatience,
+						convergenceThreshold), alpha);
+	}
+	
+	/**
+	 * Learns the codebook basis vectors with online dictionary learning,
+	 * stopping when the given monitor decides learning has converged. The
+	 * monitor is fed the running totals of the errors of every epoch.
+	 * 
+	 * @param unlabeledData	The unlabeled data to learn the codebook.
+	 * @param batchSize		Number of frames in a mini-batch.
+	 * @param maxEpochs		Maximum number of passes over the data.
+	 * @param monitor		Decides when learning has converged.
+	 * @param alpha			The regularization parameter.
+	 */
+	public void learnOnline(FrameSet unlabeledData, int batchSize,
+			int maxEpochs, ConvergenceMonitor monitor, double alpha){
+		this.alpha = alpha;
+		basisChanged();
+		
+		int dimension = basisVectors.getRowDimension();
+		int size = basisVectors.getColumnDimension();
+		double[] basis = getSnapshot().columns().clone();
+		// A = sum a*a^T, row-major s x s.
+		double[] activationProducts = new double[size*size];
+		// C = sum x*a^T, column-major n x s.
+		double[] dataProducts = new double[dimension*size];
+		double[] reconstruction = new double[dimension];
+		int[] nonZero = new int[size];
+		double[] frame = new double[dimension];
+		
+		for(int epoch = 1; epoch <= maxEpochs; epoch++){
+			System.out.println("Refining codebook, epoch " + epoch + "...");
+			double errorSum = 0;
+			double errorSquares = 0;
+			long frameCount = 0;
+			
+			for(FrameSet batch : 
+					unlabeledData.partition("partitionSize", batchSize)){
+				BasisSnapshot snapshot = getSnapshot();
+				double[][] activations = ActivationEngine.getDefault()
+						.activate(getSparseCoder(), batch, false);
+				
+				for(int frameIndex = 0; frameIndex < batch.size(); frameIndex++){
+					batch.copyFrame(frameIndex, frame, 0);
+					double[] activation = activations[frameIndex];
+					
+					// Error of the frame before this batch's update.
+					double error = regularizedError(
+							snapshot, frame, activation, reconstruction);
+					errorSum += error;
+					errorSquares += error*error;
+					frameCount++;
+					int nonZeroCount = 0;
+					for(int j = 0; j < size; j++){
+						if(activation[j] != 0){
+							nonZero[nonZeroCount++] = j;
+						}
+					}
+					
+					// Update the statistics, only the nonzero activations
+					// contribute.
+					for(int p = 0; p < nonZeroCount; p++){
+						int j = nonZero[p];
+						double aj = activation[j];
+						for(int q = 0; q < nonZeroCount; q++){
+							int k = nonZero[q];
+							activationProducts[j*size + k] += aj*activation[k];
+						}
+						int offset = j*dimension;
+						for(int i = 0; i < dimension; i++){
+							dataProducts[offset + i] += aj*frame[i];
+						}
+					}
+				}
+				
+				updateBasis(basis, activationProducts, dataProducts,
+						dimension, size);
+				setBasis(basis, dimension, size);
+			}
 			
-			System.out.println("Current error = " + currentDistance);
-			if(currentDistance > previousDistance){
-				System.out.println("DISTANCE INCREASED! Running again.");
-				previousDistance = currentDistance;
-			}else if(previousDistance - currentDistance < convergenceThreshold){
-				converged = true;
-			}else{
-				System.out.println("We made a step of " 
-						+ (previousDistance - currentDistance) 
-						+ ", which does not meet convergence criteria. "
-						+ "Running again.");
-				previousDistance = currentDistance;
+			if(monitor.update(ConvergenceMonitor.fromTotals(
+					errorSum, errorSquares, frameCount))){
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Updates every basis vector once by block coordinate descent on the
+	 * sufficient statistics, keeping each vector within the unit ball:
+	 * $u_j = d_j + (C_j - D*A_j)/A_jj$, $d_j = u_j / max(||u_j||, 1)$.
+	 * 
+	 * Basis vectors that were never activated are left as they are.
+	 */
+	private static void updateBasis(double[] basis,
+			double[] activationProducts, double[] dataProducts,
+			int dimension, int size){
+		double[] update = new double[dimension];
+		for(int j = 0; j < size; j++){
+			double ajj = activationProducts[j*size + j];
+			if(ajj <= 0){
+				continue;
+			}
+			
+			// update = C_j - D*A_j
+			int offsetJ = j*dimension;
+			System.arraycopy(dataProducts, offsetJ, update, 0, dimension);
+			for(int k = 0; k < size; k++){
+				double akj = activationProducts[k*size + j];
+				if(akj != 0){
+					int offsetK = k*dimension;
+					for(int i = 0; i < dimension; i++){
+						update[i] -= akj*basis[offsetK + i];
+					}
+				}
 			}
 			
+			double norm = 0;
+			for(int i = 0; i < dimension; i++){
+				update[i] = basis[offsetJ + i] + update[i]/ajj;
+				norm += update[i]*update[i];
+			}
+			double scale = 1/Math.max(Math.sqrt(norm), 1);
+			for(int i = 0; i < dimension; i++){
+				basis[offsetJ + i] = update[i]*scale;
+			}
+		}
+	}
+	
+	/**
+	 * Replaces the basis vectors by the given column-major basis.
+	 */
+	private void setBasis(double[] columns, int dimension, int size){
+		double[][] rows = new double[dimension][size];
+		for(int j = 0; j < size; j++){
+			for(int i = 0; i < dimension; i++){
+				rows[i][j] = columns[j*dimension + i];
+			}
 		}
+		basisVectors = new Array2DRowRealMatrix(rows, false);
+		basisChanged();
 	}
 	
 	/**
@@ -196,23 +431,22 @@ public class Codebook implements Serializable {
 	public Codebook getMostInformativeSubset() {
 		
 		// Get distance matrix for all basis vectors.
-		int numVects = basisVectors.getColumnDimension();
-		double[][] proximity = new double[numVects][];
+		BasisSnapshot basis = getSnapshot();
+		int numVects = basis.size();
+		RealVector[] columns = new RealVector[numVects];
+		double[][] vectors = new double[numVects][];
 		for(int i = 0; i < numVects; i++){
-			proximity[i] = new double[i+1];
-			for(int j = 0; j < i; j++){
-				proximity[i][j] = MaximalCrossCorrelation.distance(
-						basisVectors.getColumnVector(i), 
-						basisVectors.getColumnVector(j));
-			}
+			columns[i] = basis.column(i);
+			vectors[i] = columns[i].toArray();
 		}
+		double[][] proximity = MaximalCrossCorrelation.proximity(vectors);
 		
 		// Generate complete linkage cluster.
 		HierarchicalClustering hc = 
 				new HierarchicalClustering(new CompleteLinkage(proximity));
 		
 		// Cutoff at (ceil) number of vectors / 10.
-		int numClusters = (int) Math.ceil((double) numVects/10);
+		int numClusters = (int) Math.ceil((double) numVects/vectorsPerCluster);
         int[] label = hc.partition(numClusters);
         
         // Separate clusters
@@ -226,7 +460,16 @@ public class Codebook implements Serializable {
         
         // Populate.
         for(int i = 0; i < label.length; i++){
-        	res.get(label[i]).add(basisVectors.getColumnVector(i));
+        	res.get(label[i]).add(columns[i]);
+        }
+        
+        // Entropy of every basis vector, computed once instead of on every
+        // comparison.
+        final Map<RealVector, Double> entropies =
+        		new IdentityHashMap<RealVector, Double>(numVects);
+        for(int i = 0; i < numVects; i++){
+        	entropies.put(columns[i], empiricalEntropy(vectors[i],
+        			entropyBuckets));
         }
         
         // Extract most relevant basis vectors.
@@ -238,15 +481,13 @@ public class Codebook implements Serializable {
         	// Sort.
         	Collections.sort(currList, new java.util.Comparator<RealVector>() {
         	    public int compare(RealVector a, RealVector b) {
-        	        double shanA = empiricalEntropy(a, 10);
-        	        double shanB = empiricalEntropy(b, 10);
-        	        return Double.compare(shanB, shanA);
+        	        return Double.compare(entropies.get(b), entropies.get(a));
         	    }
         	});
         	
         	// Select most relevant 90%.
         	int itemsToSelect = (int) Math.min(Math.ceil(
-        			(double) currList.size()*0.9), currList.size());
+        			(double) currList.size()*subsetFraction), currList.size());
         	for(int j = 0; j < itemsToSelect; j++){
         		newBasisVectors.add(currList.get(j));
         	}
@@ -257,6 +498,55 @@ public class Codebook implements Serializable {
         return new Codebook(newBasisVectors, this.alpha);
 	}
 	
+	/**
+	 * Returns the parameters of getMostInformativeSubset, so a pruned
+	 * codebook can be cached together with the parameters it was pruned
+	 * with.
+	 */
+	static String subsetParameters() {
+		return "v" + subsetVersion + "-" + vectorsPerCluster + "-"
+				+ subsetFraction + "-" + entropyBuckets;
+	}
+	
+	/**
+	 * Returns a hash of the basis vectors and alpha, which identifies the
+	 * codebook: two codebooks with the same fingerprint are equal.
+	 * 
+	 * @return The SHA-256 hash in hexadecimal.
+	 */
+	public String fingerprint() {
+		String result = fingerprint;
+		if(result == null){
+			result = computeFingerprint();
+			fingerprint = result;
+		}
+		return result;
+	}
+	
+	private String computeFingerprint() {
+		BasisSnapshot basis = getSnapshot();
+		double[] columns = basis.columns();
+		ByteBuffer bytes = ByteBuffer.allocate(16 + 8*columns.length);
+		bytes.putInt(basis.dimension()).putInt(basis.size()).putDouble(alpha);
+		for(double value : columns){
+			bytes.putDouble(value);
+		}
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform supports SHA-256.
+			throw new IllegalStateException(e);
+		}
+		byte[] hash = digest.digest(bytes.array());
+		StringBuilder hex = new StringBuilder(2*hash.length);
+		for(byte b : hash){
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16))
+					.append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+	
 	/**
 	 * Calculates the empirical entropy for the given vector.
 	 * 
@@ -272,27 +562,18 @@ public class Codebook implements Serializable {
 	 * @return
 	 */
 	public double empiricalEntropy(RealVector v, int numBuckets){
-		
-		double max = v.getMaxValue();
-		//System.out.println(max);
-		double min = v.getMinValue();
-		RealVector normalizedV = v.mapSubtract(min).mapDivide(max-min);
-		
-		double[] buckets = new double[numBuckets];
-		for(double el : normalizedV.toArray()){
-			if(el == 1){
-				buckets[9] ++;
-			}else{
-				int index = new Double(Math.floor(el*10)).intValue();
-				buckets[index] ++;
-			}
-		}
+		return empiricalEntropy(v.toArray(), numBuckets);
+	}
+	
+	private static double empiricalEntropy(double[] v, int numBuckets){
+		int[] buckets = Kernels.histogram(v, Kernels.min(v), Kernels.max(v),
+				numBuckets);
 		
 		double entropy = 0;
-		double count = v.getDimension();
+		double count = v.length;
 		
-		for(double el : buckets){
-			if(el > 0.0){
+		for(int el : buckets){
+			if(el > 0){
 				entropy -= (el/count)*Math.log2(el/count);
 			}
 		}
@@ -301,29 +582,25 @@ public class Codebook implements Serializable {
 	}
 	
 	/**
-	 * Calculates the regularized reconstruction error of the frame set and the
-	 * reconstruction by using the activation vectors as coefficient vectors for
+	 * Calculates the regularized reconstruction error of a frame and the
+	 * reconstruction by using the activation vector as coefficient vector for
 	 * the basis vectors currently in the codebook.
 	 * 
-	 * @param data	Measurements.
-	 * @param activationVectors	Coefficient vectors to reconstruct measurements.
+	 * @param frame			Measurements.
+	 * @param activation	Coefficient vector to reconstruct the measurements.
+	 * @param scratch		Array of the frame's length, used as workspace.
 	 * @return	Regularized reconstruction error.
 	 */
-	private double getAverageRegularizedReconstructionError(
-			FrameSet data, FrameSet activationVectors) {
-		
-		double accumulator = 0;
-		RealMatrix difference = data.toMatrix().
-				subtract(basisVectors.multiply(activationVectors.toMatrix()));
-		
-		for(int columnIndex = 0; 
-				columnIndex < difference.getColumnDimension(); columnIndex++){
-			accumulator += Math.pow(
-					difference.getColumnVector(columnIndex).getNorm(),2);
-			accumulator += alpha*activationVectors.getFrame(0).getL1Norm();
-		}
-		
-		return accumulator/data.size();
+	double regularizedError(double[] frame, double[] activation,
+			double[] scratch){
+		return regularizedError(getSnapshot(), frame, activation, scratch);
+	}
+	
+	private double regularizedError(BasisSnapshot basis, double[] frame,
+			double[] activation, double[] scratch){
+		basis.reconstruct(activation, scratch);
+		return Kernels.squaredDistance(frame, scratch, frame.length)
+				+ alpha*Kernels.l1Norm(activation);
 	}
 	
 	/**
@@ -338,7 +615,113 @@ public class Codebook implements Serializable {
 	 * @return	The corresponding activation vectors.
 	 */
 	public FrameSet activate(FrameSet labeled) {
-		return new FrameSet(l1RegularizedLassoSolve(labeled));
+		return activate(labeled, ActivationEngine.getDefault());
+	}
+	
+	/**
+	 * Activates the frames of the supplied frame set on the worker threads of
+	 * the given activation engine. The activations are returned in the same
+	 * order as the frames.
+	 * 
+	 * @param labeled	The data to be activated.
+	 * @param engine	The engine distributing the frames over its threads.
+	 * @return	The corresponding activation vectors.
+	 */
+	public FrameSet activate(FrameSet labeled, ActivationEngine engine) {
+		// Activations of overlapping windows turned out too different to
+		// gain from a warm start, so every frame starts from zero.
+		return activate(labeled, engine, ActivationCache.getDefault());
+	}
+	
+	/**
+	 * Activates the frames of the supplied frame set on the worker threads of
+	 * the given activation engine. Frames activated before with this codebook
+	 * are taken from the cache, the others are solved and added to it.
+	 * 
+	 * @param labeled	The data to be activated.
+	 * @param engine	The engine distributing the frames over its threads.
+	 * @param cache		The activation cache, or null to solve every frame.
+	 * @return	The corresponding activation vectors.
+	 */
+	public FrameSet activate(FrameSet labeled, ActivationEngine engine,
+			ActivationCache cache) {
+		if (cache == null) {
+			return activate(labeled, engine, false);
+		}
+		long start = activateTimer.start();
+		String codebook = fingerprint();
+		int size = getSnapshot().size();
+		cache.open(codebook, size);
+		FrameSet activations = engine.activateFrames(
+				getSparseCoder(), labeled, size, cache, codebook);
+		cache.flush(codebook, size);
+		framesActivated.add(labeled.size());
+		activateTimer.stop(start);
+		return activations;
+	}
+	
+	/**
+	 * Activates the frames of the supplied frame set on the worker threads of
+	 * the given activation engine, optionally starting every frame from the
+	 * activation of the frame before it.
+	 * 
+	 * @param labeled	The data to be activated.
+	 * @param engine	The engine distributing the frames over its threads.
+	 * @param warmStart	Whether to warm start from the previous frame.
+	 * @return	The corresponding activation vectors.
+	 */
+	public FrameSet activate(FrameSet labeled, ActivationEngine engine,
+			boolean warmStart) {
+		long start = activateTimer.start();
+		FrameSet activations = l1RegularizedLassoSolve(
+				labeled, engine, getSparseCoder(), warmStart);
+		framesActivated.add(labeled.size());
+		activateTimer.stop(start);
+		return activations;
+	}
+	
+	/**
+	 * Activates the frames with smile's LASSO solver instead of the
+	 * feature-sign search of the sparse coder. This is much slower, it is
+	 * kept as the reference to validate the activations of the sparse coder
+	 * against.
+	 * 
+	 * @param labeled	The data to be activated.
+	 * @return	The corresponding activation vectors.
+	 */
+	public FrameSet activateWithLasso(FrameSet labeled) {
+		return activateWithLasso(labeled, true);
+	}
+	
+	/**
+	 * Activates the frames with smile's LASSO solver, optionally without
+	 * muting its output.
+	 * 
+	 * @param labeled	The data to be activated.
+	 * @param quiet		Whether to mute what LASSO prints on the threads
+	 * 					solving the frames. Callers that silence System.out
+	 * 					themselves pass false.
+	 * @return	The corresponding activation vectors.
+	 */
+	public FrameSet activateWithLasso(FrameSet labeled, final boolean quiet) {
+		final double[][] beta = getSnapshot().rows();
+		FrameSolver lasso = new FrameSolver() {
+			@Override
+			public double[] solve(double[] frame, double[] warmStart) {
+				if (!quiet) {
+					return new LASSO(beta, frame, alpha).coefficients();
+				}
+				// To suppress LASSO prints, for this thread only.
+				QuietConsole.mute();
+				try {
+					return new LASSO(beta, frame, alpha).coefficients();
+				} finally {
+					QuietConsole.unmute();
+				}
+			}
+		};
+		return l1RegularizedLassoSolve(
+				labeled, ActivationEngine.getDefault(), lasso, false);
 	}
 	
 	/**
@@ -350,40 +733,55 @@ public class Codebook implements Serializable {
 	 * system to solve against.
 	 * 
 	 * @param batch	Batch of frames to be used as solution vectors.
-	 * @return Matrix with the corresponding coefficient vectors.
+	 * @param engine	The engine distributing the frames over its threads.
+	 * @param solver	The solver for a single frame.
+	 * @param warmStart	Whether consecutive frames overlap, so a frame can
+	 * 					start from the activation of the previous one.
+	 * @return Frame set with the corresponding coefficient vectors.
 	 */
-	private Array2DRowRealMatrix l1RegularizedLassoSolve(FrameSet batch){
+	private FrameSet l1RegularizedLassoSolve(FrameSet batch,
+			ActivationEngine engine, FrameSolver solver, boolean warmStart){
 		
-		PrintStream originalStream = System.out;
-
-		// To suppress LASSO prints...
-		PrintStream dummyStream    = new PrintStream(new OutputStream(){
-		    public void write(int b) {
-		        //NO-OP
-		    }
-		});
-		
-		
-		Array2DRowRealMatrix activationMatrix = 
-				new Array2DRowRealMatrix(
-						basisVectors.getColumnDimension(), batch.size());
-
-		// For each vector in batch.
-		for(int i = 0; i < batch.size(); i++){
-			double[] y = batch.getFrame(i).toArray();
-			double[][] beta = basisVectors.getData();
-			System.setOut(dummyStream);
-			LASSO solver = new LASSO(beta, y, alpha);
-			System.setOut(originalStream);
-			double[] a = solver.coefficients();
-			activationMatrix.setColumn(i, a);
-
+		// Most coefficients are zero, the frame set keeps only the others
+		// unless the activations turn out dense.
+		return engine.activateFrames(
+				solver, batch, warmStart, getSnapshot().size());
+	}
+	
+	/**
+	 * Returns the snapshot of the current basis vectors, creating it if the
+	 * basis changed since it was last used.
+	 */
+	BasisSnapshot getSnapshot(){
+		BasisSnapshot result = snapshot;
+		if(result == null){
+			result = new BasisSnapshot(basisVectors);
+			snapshot = result;
 		}
-		//System.out.println(aa);
-		//System.out.println(cc);
-		//System.out.println(bb);
-		return activationMatrix;
-		
+		return result;
+	}
+	
+	/**
+	 * Returns the sparse coder for the current basis vectors, creating it
+	 * if the basis changed since it was last used.
+	 */
+	private SparseCoder getSparseCoder(){
+		SparseCoder coder = sparseCoder;
+		if(coder == null){
+			coder = new SparseCoder(getSnapshot(), alpha);
+			sparseCoder = coder;
+		}
+		return coder;
+	}
+	
+	/**
+	 * Drops everything derived from the basis vectors or alpha. Must be
+	 * called whenever either of them changes.
+	 */
+	private void basisChanged(){
+		snapshot = null;
+		sparseCoder = null;
+		fingerprint = null;
 	}
 	
 	/**
@@ -406,13 +804,14 @@ public class Codebook implements Serializable {
 	 * @post  Codebook is updated with least squares solution.
 	 */
 	private void improveWithLeastSquaresSolve(FrameSet batch, 
-			Array2DRowRealMatrix activationForBatch){
+			FrameSet activationForBatch){
 		// We solve the least squares problem
 		// transpose(batch) = transpose(activationForBatch)*transpose(codebook)
 		// for codebook and update codebook.
 		
 		DecompositionSolver solver = new SingularValueDecomposition(
-				activationForBatch.transpose()).getSolver();
-		basisVectors = solver.solve(batch.toMatrixTranspose()).transpose();
+				activationForBatch.asMatrixTranspose()).getSolver();
+		basisVectors = solver.solve(batch.asMatrixTranspose()).transpose();
+		basisChanged();
 	}
 }
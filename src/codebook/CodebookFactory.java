@@ -2,6 +2,7 @@ package codebook;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -12,9 +13,6 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
-import java.util.ArrayList;
-
-import org.apache.commons.math3.linear.ArrayRealVector;
 
 import data.FrameSet;
 
@@ -29,6 +27,13 @@ public class CodebookFactory {
 			codebookFolder+"codebook.ser";
 	final static private String personCodebookFile =
 			codebookFolder+"codebook.ser";
+	// Codebooks are kept in the binary format, next to the old .ser files.
+	final static private String binaryExtension = ".cbk";
+	final static private String serializedExtension = ".ser";
+	// Pruned codebooks, named after their source codebook and the pruning.
+	final static private String subsetFolder = codebookFolder+"subsets/";
+	// First bytes of a Java serialization stream.
+	final static private short serializationMagic = (short) 0xACED;
 
 	/**
 	 * Create and learn a new codebook with the giving data.
@@ -70,6 +75,34 @@ public class CodebookFactory {
 
 	}
 
+	/**
+	 * Create and learn a new codebook with online dictionary learning, see
+	 * Codebook.learnOnline. Suited for large amounts of data, since the
+	 * learning time grows linearly with the number of frames.
+	 * 
+	 * @param unlabeledData		Unlabeled data to learn the codebook.
+	 * @param batchSize			Number of frames in a mini-batch.
+	 * @param basisSize			The number of basis vectors.
+	 * @param maxEpochs			Maximum number of passes over the data.
+	 * @param convergenceThreshold	The drop in the regularized reconstruction
+	 * 								error between two consecutive epochs needs
+	 * 								to be smaller than this threshold to imply
+	 * 								convergence and return the codebook.
+	 * @param alpha	The regularization parameter, see newCodebook.
+	 * 
+	 * @return A new codebook.
+	 */
+	public static Codebook newOnlineCodebook(FrameSet unlabeledData,
+			int batchSize, int basisSize, int maxEpochs,
+			double convergenceThreshold, double alpha) {
+
+		Codebook codebook = new Codebook(unlabeledData.dimension(), basisSize);
+		codebook.learnOnline(unlabeledData, batchSize, maxEpochs,
+				convergenceThreshold, alpha);
+		return codebook;
+
+	}
+
 	/**
 	 * Reads a the codebook associated with walking data from the disk.
 	 * 
@@ -78,8 +111,8 @@ public class CodebookFactory {
 	 */
 	public static Codebook getWalkCodebook() throws Exception {
 		// TODO if file not exists, error should be shown
-		Codebook codebook = deserializeCodebook(walkCodebookFile);
-		return codebook.getMostInformativeSubset();
+		Codebook codebook = readCodebook(walkCodebookFile);
+		return getMostInformativeSubset(codebook);
 	}
 
 	/**
@@ -90,8 +123,8 @@ public class CodebookFactory {
 	 */
 	public static Codebook getPersonCodebook() throws Exception {
 		// TODO if file not exists, error should be shown
-		Codebook codebook = deserializeCodebook(personCodebookFile);
-		return codebook.getMostInformativeSubset();
+		Codebook codebook = readCodebook(personCodebookFile);
+		return getMostInformativeSubset(codebook);
 	}
 	
 	/**
@@ -112,9 +145,9 @@ public class CodebookFactory {
 	 * Either reads a codebook from disk or, if the codebook doesn't already
 	 * exist, learns a new codebook using the unlabeled and default parameters.
 	 * 
-	 * The boolean parameter small lets you pick between a bigger and more
-	 * accurate codebook, or a smaller codebook that's faster to generate and
-	 * utilize.
+	 * The codebook is learned online on all unlabeled frames. The boolean
+	 * parameter small lets you pick between a bigger and more accurate
+	 * codebook, or a smaller codebook that's faster to generate and utilize.
 	 * 
 	 * @param unlabeled	Unlabeled data to learn a new codebook.
 	 * @return A codebook
@@ -122,11 +155,11 @@ public class CodebookFactory {
 	 */
 	public static Codebook getCodebook(FrameSet unlabeled, boolean small) {
 		String fileName = walkCodebookFile;
-		File file = new File(fileName);
-		if (file.exists()) {
+		if (new File(fileName).exists()
+				|| new File(binaryFileName(fileName)).exists()) {
 			try {
-				Codebook codebook = deserializeCodebook(fileName);
-				return codebook.getMostInformativeSubset();
+				Codebook codebook = readCodebook(fileName);
+				return getMostInformativeSubset(codebook);
 			} catch (Exception e) {
 				System.out.println("File exists but might be corrupt.");
 				e.printStackTrace();
@@ -135,33 +168,26 @@ public class CodebookFactory {
 		}
 
 		// Codebook learning parameters.
-		String partitionStyle = "partitionSize";
-		int partitionOption = 50;
-		double convergenceThreshold = 0.1;
+		int batchSize = 256;
+		int maxEpochs = 20;
+		double convergenceThreshold = 0.01;
 		double alpha = 0.9;
 		int basisSize = 256;
 		
 		// If small, adjust paremeters.
 		if(small){
-			int subsetSize = 500;
 			basisSize = 128;
-			ArrayList<ArrayRealVector> subset = new ArrayList<ArrayRealVector>(
-					subsetSize);
-			for (int i = 0; i < subsetSize; i++) {
-				subset.add(unlabeled.getFrame(i));
-			}
-			unlabeled = new FrameSet(subset);
 		}
 
-		Codebook codebook = newCodebook(unlabeled,
-				partitionStyle, partitionOption, basisSize,
-				convergenceThreshold, alpha);
+		Codebook codebook = newOnlineCodebook(unlabeled, batchSize,
+				basisSize, maxEpochs, convergenceThreshold, alpha);
 
-		codebook = codebook.getMostInformativeSubset();
+		codebook = getMostInformativeSubset(codebook);
 
 		// Try writing the generated codebook to disk.
 		try {
-			serializeCodebook(codebook, fileName);
+			CodebookFile.write(codebook, new File(binaryFileName(fileName)),
+					false);
 		} catch (IOException e) {
 			System.out.println("Failed to write generated codebook to disk. "
 					+ "Continuing execution.");
@@ -170,6 +196,122 @@ public class CodebookFactory {
 		return codebook;
 	}
 
+	/**
+	 * Returns the most informative subset of a codebook, see
+	 * Codebook.getMostInformativeSubset. Pruning is slow, so pruned codebooks
+	 * are kept on disk, keyed by the fingerprint of the source codebook and
+	 * the pruning parameters, and only pruned again if either changed.
+	 * 
+	 * @param codebook	The codebook to prune.
+	 * @return The pruned codebook.
+	 */
+	public static Codebook getMostInformativeSubset(Codebook codebook) {
+		File file = new File(subsetFolder + codebook.fingerprint() + "-"
+				+ Codebook.subsetParameters() + binaryExtension);
+		if (file.exists()) {
+			try {
+				return CodebookFile.read(file, false);
+			} catch (IOException e) {
+				System.out.println("Pruned codebook " + file.getName()
+						+ " is corrupt, pruning again.");
+			}
+		}
+		Codebook subset = codebook.getMostInformativeSubset();
+		try {
+			CodebookFile.write(subset, file, false);
+		} catch (IOException e) {
+			System.out.println("Failed to write pruned codebook to disk. "
+					+ "Continuing execution.");
+		}
+		return subset;
+	}
+
+	/**
+	 * Converts a codebook file from one format to the other. The format of
+	 * the source is detected from its contents. The target is written as a
+	 * serialized codebook if its name ends in .ser, and in the binary format
+	 * otherwise.
+	 * 
+	 * @param sourceFileName	Codebook file to read.
+	 * @param targetFileName	Codebook file to write.
+	 * @param singlePrecision	Whether a binary target stores floats instead
+	 * 							of doubles.
+	 * @throws IOException	Thrown if reading or writing fails.
+	 * @throws ClassNotFoundException	Thrown if the source is a serialized
+	 * 									codebook of an unknown class.
+	 */
+	public static void convertCodebook(String sourceFileName,
+			String targetFileName, boolean singlePrecision)
+			throws IOException, ClassNotFoundException {
+		Codebook codebook = readCodebookFile(new File(sourceFileName), false);
+		if (targetFileName.endsWith(serializedExtension)) {
+			serializeCodebook(codebook, targetFileName);
+		} else {
+			CodebookFile.write(codebook, new File(targetFileName),
+					singlePrecision);
+		}
+	}
+
+	/**
+	 * Reads the codebook stored under the given .ser file name. The binary
+	 * file next to it is preferred. If there is none, or the .ser file is
+	 * newer, the .ser file is read and converted to a binary file, so it is
+	 * only deserialized once.
+	 * 
+	 * @param fileName	Filename of the serialized codebook.
+	 * @return The codebook.
+	 * @throws IOException	Thrown if reading from disk fails.
+	 */
+	private static Codebook readCodebook(String fileName)
+			throws IOException, ClassNotFoundException {
+		File serialized = new File(fileName);
+		File binary = new File(binaryFileName(fileName));
+		if (binary.exists() && (!serialized.exists()
+				|| binary.lastModified() >= serialized.lastModified())) {
+			return CodebookFile.read(binary, false);
+		}
+		Codebook codebook = readCodebookFile(serialized, false);
+		try {
+			CodebookFile.write(codebook, binary, false);
+		} catch (IOException e) {
+			System.out.println("Failed to convert " + fileName
+					+ " to the binary format. Continuing execution.");
+		}
+		return codebook;
+	}
+
+	/**
+	 * Reads a codebook file in either format, depending on its first bytes.
+	 * 
+	 * @param file		The codebook file.
+	 * @param mapped	Whether to map a binary file into memory.
+	 * @return The codebook.
+	 * @throws IOException	Thrown if reading from disk fails.
+	 */
+	public static Codebook readCodebookFile(File file, boolean mapped)
+			throws IOException, ClassNotFoundException {
+		if (CodebookFile.isCodebookFile(file)) {
+			return CodebookFile.read(file, mapped);
+		}
+		InputStream input = new FileInputStream(file);
+		try {
+			if (new DataInputStream(input).readShort() != serializationMagic) {
+				throw new IOException(file + " is not a codebook.");
+			}
+		} finally {
+			input.close();
+		}
+		return deserializeCodebook(file.getPath());
+	}
+
+	private static String binaryFileName(String fileName) {
+		if (fileName.endsWith(serializedExtension)) {
+			fileName = fileName.substring(0,
+					fileName.length() - serializedExtension.length());
+		}
+		return fileName + binaryExtension;
+	}
+
 	/**
 	 * Writes a codebook to disk with the given name.
 	 * 
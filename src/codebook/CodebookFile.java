@@ -0,0 +1,208 @@
+package codebook;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary file holding the basis vectors of a codebook, independent
+ * of the classes of the codebook.
+ *
+ * The file starts with a fixed header, followed by the basis column by
+ * column, in single or double precision. All values are little-endian:
+ *
+ * <pre>
+ * int    magic ("CBKF")
+ * int    version
+ * int    dimension of the basis vectors
+ * int    number of basis vectors
+ * double alpha
+ * int    bytes per value, 4 or 8
+ * int    CRC-32 of the values
+ * values, basis vector after basis vector
+ * </pre>
+ *
+ */
+final class CodebookFile {
+
+	static final int magic = 0x464B4243; // "CBKF" little-endian
+	private static final int version = 1;
+	private static final int headerLength = 32;
+
+	private CodebookFile() {
+	}
+
+	/**
+	 * @return Whether the file starts like a binary codebook file.
+	 * @throws IOException
+	 */
+	static boolean isCodebookFile(File file) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			if (input.length() < 4) {
+				return false;
+			}
+			return Integer.reverseBytes(input.readInt()) == magic;
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Writes the codebook to the file. The file is written to a temporary
+	 * file first, so a codebook file that exists is always complete.
+	 *
+	 * @param codebook			The codebook.
+	 * @param file				The file to write.
+	 * @param singlePrecision	Whether to store the values as floats, which
+	 * 							halves the size of the file.
+	 * @throws IOException
+	 */
+	static void write(Codebook codebook, File file, boolean singlePrecision)
+			throws IOException {
+		BasisSnapshot basis = codebook.getSnapshot();
+		double[] columns = basis.columns();
+		int bytesPerValue = singlePrecision ? 4 : 8;
+
+		ByteBuffer data = ByteBuffer.allocate(columns.length * bytesPerValue)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		for (double value : columns) {
+			if (singlePrecision) {
+				data.putFloat((float) value);
+			} else {
+				data.putDouble(value);
+			}
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data.array(), 0, data.capacity());
+		data.flip();
+
+		ByteBuffer header = ByteBuffer.allocate(headerLength)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(magic).putInt(version).putInt(basis.dimension())
+				.putInt(basis.size()).putDouble(codebook.alpha)
+				.putInt(bytesPerValue).putInt((int) crc.getValue());
+		header.flip();
+
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		File temporary = new File(file.getPath() + ".tmp");
+		RandomAccessFile output = new RandomAccessFile(temporary, "rw");
+		try {
+			FileChannel channel = output.getChannel();
+			channel.truncate(0);
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+			while (data.hasRemaining()) {
+				channel.write(data);
+			}
+			channel.force(false);
+		} finally {
+			output.close();
+		}
+		Files.move(temporary.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Reads a codebook from the file.
+	 *
+	 * @param file		The file.
+	 * @param mapped	Whether to map the values into memory instead of
+	 * 					reading them into a buffer, which saves a copy for
+	 * 					large codebooks.
+	 * @return The codebook.
+	 * @throws IOException	If the file cannot be read, is not a codebook file
+	 * 						or its checksum does not match.
+	 */
+	static Codebook read(File file, boolean mapped) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = input.getChannel();
+			ByteBuffer header = readFully(channel, 0, headerLength);
+			if (header.getInt() != magic) {
+				throw new IOException(file + " is not a codebook file.");
+			}
+			int fileVersion = header.getInt();
+			if (fileVersion != version) {
+				throw new IOException("Unsupported codebook file version "
+						+ fileVersion + ".");
+			}
+			int dimension = header.getInt();
+			int size = header.getInt();
+			double alpha = header.getDouble();
+			int bytesPerValue = header.getInt();
+			int checksum = header.getInt();
+			long dataLength = (long) dimension * size * bytesPerValue;
+			if (dimension < 1 || size < 1
+					|| (bytesPerValue != 4 && bytesPerValue != 8)
+					|| dataLength > Integer.MAX_VALUE
+					|| headerLength + dataLength > channel.size()) {
+				throw new IOException(file + " is truncated or corrupt.");
+			}
+
+			ByteBuffer data;
+			if (mapped) {
+				data = channel.map(FileChannel.MapMode.READ_ONLY,
+						headerLength, dataLength)
+						.order(ByteOrder.LITTLE_ENDIAN);
+			} else {
+				data = readFully(channel, headerLength, (int) dataLength);
+			}
+			if (checksum(data) != checksum) {
+				throw new IOException(file + " has a wrong checksum.");
+			}
+
+			double[] columns = new double[dimension * size];
+			if (bytesPerValue == 4) {
+				for (int i = 0; i < columns.length; i++) {
+					columns[i] = data.getFloat(i * 4);
+				}
+			} else {
+				data.asDoubleBuffer().get(columns);
+			}
+			return new Codebook(columns, dimension, size, alpha);
+		} finally {
+			input.close();
+		}
+	}
+
+	private static int checksum(ByteBuffer data) {
+		CRC32 crc = new CRC32();
+		if (data.hasArray()) {
+			crc.update(data.array(), data.arrayOffset() + data.position(),
+					data.remaining());
+		} else {
+			ByteBuffer bytes = data.duplicate();
+			byte[] chunk = new byte[8192];
+			while (bytes.hasRemaining()) {
+				int length = Math.min(chunk.length, bytes.remaining());
+				bytes.get(chunk, 0, length);
+				crc.update(chunk, 0, length);
+			}
+		}
+		return (int) crc.getValue();
+	}
+
+	private static ByteBuffer readFully(FileChannel channel, long position,
+			int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of codebook file.");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+}
@@ -0,0 +1,215 @@
+package codebook;
+
+import java.util.Random;
+
+import data.FrameSet;
+
+/**
+ * Decides when codebook learning has converged, from an estimate of the
+ * regularized reconstruction error instead of an activation of all data.
+ *
+ * The estimate comes either from a reservoir sample of the frames, which is
+ * activated after every epoch, or from running totals of the errors observed
+ * while the batches were solved. Both report the mean error per frame with
+ * a 95% confidence interval.
+ *
+ * Learning has converged once the best error so far has not dropped by at
+ * least the threshold for a number of consecutive epochs (the patience).
+ *
+ */
+public class ConvergenceMonitor {
+
+	// z-value of a two-sided 95% confidence interval.
+	private static final double confidenceZ = 1.96;
+	// The sample is only held out if the rest of the data is this many
+	// times larger.
+	private static final int holdOutFactor = 4;
+
+	private final int sampleSize;
+	private final int patience;
+	private final double threshold;
+	private final Random random;
+
+	private FrameSet sample;
+	private double bestError = Double.MAX_VALUE;
+	private int stalledEpochs = 0;
+	private int epoch = 0;
+
+	/**
+	 * @param sampleSize	Number of frames in the reservoir sample.
+	 * @param patience		Number of consecutive epochs without sufficient
+	 * 						improvement before learning stops.
+	 * @param threshold		Minimum drop in error that counts as improvement.
+	 */
+	public ConvergenceMonitor(int sampleSize, int patience, double threshold) {
+		this(sampleSize, patience, threshold, new Random());
+	}
+
+	/**
+	 * @param sampleSize	Number of frames in the reservoir sample.
+	 * @param patience		Number of consecutive epochs without sufficient
+	 * 						improvement before learning stops.
+	 * @param threshold		Minimum drop in error that counts as improvement.
+	 * @param random		Source of randomness for drawing the sample.
+	 */
+	public ConvergenceMonitor(int sampleSize, int patience, double threshold,
+			Random random) {
+		if (sampleSize < 1 || patience < 1) {
+			throw new IllegalArgumentException(
+					"sampleSize and patience should be at least 1.");
+		}
+		this.sampleSize = sampleSize;
+		this.patience = patience;
+		this.threshold = threshold;
+		this.random = random;
+	}
+
+	/**
+	 * Draws the reservoir sample from the data. If the data is large enough,
+	 * the sampled frames are held out and a view of the remaining frames is
+	 * returned for training; otherwise the sample is drawn from the training
+	 * data and all frames are returned.
+	 *
+	 * @param data	All unlabeled frames.
+	 * @return	The frames to train on.
+	 */
+	public FrameSet drawSample(FrameSet data) {
+		int size = Math.min(sampleSize, data.size());
+		// Reservoir sampling, algorithm R.
+		int[] reservoir = new int[size];
+		for (int i = 0; i < data.size(); i++) {
+			if (i < size) {
+				reservoir[i] = i;
+			} else {
+				int j = random.nextInt(i + 1);
+				if (j < size) {
+					reservoir[j] = i;
+				}
+			}
+		}
+
+		int dimension = data.dimension();
+		boolean[] sampled = new boolean[data.size()];
+		double[] sampleFrames = new double[size * dimension];
+		for (int k = 0; k < size; k++) {
+			sampled[reservoir[k]] = true;
+			data.copyFrame(reservoir[k], sampleFrames, k * dimension);
+		}
+		this.sample = new FrameSet(sampleFrames, dimension);
+
+		if (data.size() < (holdOutFactor + 1) * size) {
+			return data;
+		}
+		// A view, the training frames are not copied: they may be a mapped
+		// store larger than the heap.
+		int[] training = new int[data.size() - size];
+		int count = 0;
+		for (int i = 0; i < data.size(); i++) {
+			if (!sampled[i]) {
+				training[count++] = i;
+			}
+		}
+		return data.select(training);
+	}
+
+	/**
+	 * Estimates the error of the codebook on the reservoir sample.
+	 *
+	 * @param codebook	The codebook in its current state.
+	 * @return	The estimated error per frame.
+	 */
+	public Estimate estimate(Codebook codebook) {
+		if (sample == null) {
+			throw new IllegalStateException("No sample drawn yet.");
+		}
+		// The codebook changes after every estimate, its activations are
+		// not worth caching.
+		FrameSet activations = codebook.activate(
+				sample, ActivationEngine.getDefault(), false);
+		double[] frame = new double[sample.dimension()];
+		double[] activation = new double[activations.dimension()];
+		double[] scratch = new double[sample.dimension()];
+		double sum = 0;
+		double sumOfSquares = 0;
+		for (int i = 0; i < sample.size(); i++) {
+			sample.copyFrame(i, frame, 0);
+			activations.copyFrame(i, activation, 0);
+			double error = codebook.regularizedError(
+					frame, activation, scratch);
+			sum += error;
+			sumOfSquares += error*error;
+		}
+		return fromTotals(sum, sumOfSquares, sample.size());
+	}
+
+	/**
+	 * Turns running totals of per-frame errors into an estimate.
+	 *
+	 * @param sum			Sum of the errors.
+	 * @param sumOfSquares	Sum of the squared errors.
+	 * @param count			Number of frames.
+	 * @return	The estimated error per frame.
+	 */
+	public static Estimate fromTotals(double sum, double sumOfSquares,
+			long count) {
+		double mean = sum / count;
+		double variance = count > 1 ?
+				Math.max(sumOfSquares - sum*mean, 0) / (count - 1) : 0;
+		double halfWidth = confidenceZ * Math.sqrt(variance / count);
+		return new Estimate(mean, halfWidth, count);
+	}
+
+	/**
+	 * Records the estimate of the epoch that just finished and reports it.
+	 *
+	 * @param estimate	Error estimate after the epoch.
+	 * @return	True if learning has converged.
+	 */
+	public boolean update(Estimate estimate) {
+		epoch++;
+		System.out.println("Epoch " + epoch + ": error = " + estimate);
+		if (bestError - estimate.getMean() >= threshold) {
+			stalledEpochs = 0;
+		} else {
+			stalledEpochs++;
+			System.out.println("Improvement below " + threshold + " for "
+					+ stalledEpochs + " of " + patience + " epochs.");
+		}
+		bestError = Math.min(bestError, estimate.getMean());
+		return stalledEpochs >= patience;
+	}
+
+	/**
+	 * Mean error per frame with the half-width of its 95% confidence
+	 * interval.
+	 */
+	public static class Estimate {
+
+		private final double mean;
+		private final double halfWidth;
+		private final long count;
+
+		Estimate(double mean, double halfWidth, long count) {
+			this.mean = mean;
+			this.halfWidth = halfWidth;
+			this.count = count;
+		}
+
+		public double getMean() {
+			return mean;
+		}
+
+		public double getHalfWidth() {
+			return halfWidth;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		@Override
+		public String toString() {
+			return mean + " +/- " + halfWidth + " (95%, " + count + " frames)";
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package codebook;
+
+/**
+ * Solves the activation of a single frame against a codebook.
+ *
+ */
+interface FrameSolver {
+
+	/**
+	 * @param frame		The frame to activate.
+	 * @param warmStart	Activation to start from, may be ignored. Null if
+	 * 					there is no sensible starting point.
+	 * @return	The activation vector of the frame.
+	 */
+	double[] solve(double[] frame, double[] warmStart);
+}
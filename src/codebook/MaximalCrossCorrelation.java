@@ -1,22 +1,42 @@
 package codebook;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
 import org.apache.commons.math3.linear.RealVector;
 
 import smile.math.Math;
+import util.Kernels;
+import util.WorkerPool;
 
 /**
  * Class implementing the maximal cross-correlation distance function.
  *
+ * Short vectors are correlated lag by lag, which takes O(n^2) time. From
+ * fftThreshold on, all lags are computed at once with a fast Fourier
+ * transform in O(n log n) time. The all-pairs mode transforms every vector
+ * only once and computes the rows of the proximity matrix in parallel.
+ *
  */
 public class MaximalCrossCorrelation {
 
+	// Dimension from which the Fourier transform is clearly faster than
+	// correlating lag by lag. Below it, both take about as long, and the
+	// frames of 50 samples keep their exact distances.
+	static final int fftThreshold = 64;
+	// Proximity matrices with fewer vectors are computed on the caller thread.
+	private static final int minimumParallelSize = 64;
+	// Number of chunks of rows per thread, to balance the threads.
+	private static final int chunksPerThread = 4;
+
 	/**
 	 * Returns the maximal cross-correlation distance for two vectors.
-	 * 
+	 *
 	 * The maximal cross-correlation is defined as the maximal sum of
-	 * v1(tau)*v2(n+tau-t), with tau ranging from the maximum of (0, t-n) 
+	 * v1(tau)*v2(n+tau-t), with tau ranging from the maximum of (0, t-n)
 	 * to the minimum of (t, n) and t variable.
-	 * 
+	 *
 	 * In other words: $max sum_{tau = max(0,t-n)}^{min(t,n)} v_1(tau)*
 	 * v2(n+tau-n)$, for t variable.
 	 * @param v1
@@ -24,23 +44,261 @@ public class MaximalCrossCorrelation {
 	 * @return
 	 */
 	public static double distance(RealVector v1, RealVector v2) {
-		
-		int n = v1.getDimension();
+		return distance(v1.toArray(), v2.toArray());
+	}
+
+	/**
+	 * Returns the maximal cross-correlation distance for two vectors of the
+	 * same dimension, see above.
+	 */
+	public static double distance(double[] v1, double[] v2) {
+		int n = v1.length;
+		if (n < fftThreshold) {
+			return directDistance(v1, v2);
+		}
+		Spectra spectra = new Spectra(n);
+		double[][] first = spectra.transform(v1);
+		double[][] second = spectra.transform(v2);
+		double[] result = new double[2];
+		spectra.distances(first, second, second, result);
+		return result[0];
+	}
+
+	/**
+	 * Computes the maximal cross-correlation distance between every pair of
+	 * vectors, on the default worker pool.
+	 *
+	 * @param vectors	Vectors of the same dimension.
+	 * @return	Lower triangular proximity matrix: row i holds the distances
+	 * 			to vectors 0 up to i, the distance to itself being 0.
+	 */
+	public static double[][] proximity(double[][] vectors) {
+		return proximity(vectors, WorkerPool.getDefault());
+	}
+
+	/**
+	 * Computes the maximal cross-correlation distance between every pair of
+	 * vectors. The rows are computed in parallel on the worker threads of
+	 * the pool. The result does not depend on the number of threads.
+	 *
+	 * @param vectors	Vectors of the same dimension.
+	 * @param workers	Pool whose worker threads compute the rows.
+	 * @return	Lower triangular proximity matrix, see above.
+	 */
+	public static double[][] proximity(final double[][] vectors,
+			WorkerPool workers) {
+		final int size = vectors.length;
+		final double[][] proximity = new double[size][];
+		for (int i = 0; i < size; i++) {
+			proximity[i] = new double[i+1];
+		}
+		if (size == 0) {
+			return proximity;
+		}
+
+		final int n = vectors[0].length;
+		final Spectra spectra = n < fftThreshold ? null : new Spectra(n);
+		final double[][][] transforms = spectra == null ?
+				null : new double[size][][];
+		if (spectra != null) {
+			for (int i = 0; i < size; i++) {
+				transforms[i] = spectra.transform(vectors[i]);
+			}
+		}
+
+		int numberOfChunks = Math.min(
+				workers.getNumberOfThreads() * chunksPerThread, size);
+		if (size < minimumParallelSize || numberOfChunks <= 1) {
+			computeRows(vectors, spectra, transforms, proximity, 0, size);
+			return proximity;
+		}
+		// Row i holds i distances, so chunks of rows with an equal number
+		// of distances end at size*sqrt(chunk/numberOfChunks).
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(
+				numberOfChunks);
+		int from = 0;
+		for (int chunk = 1; chunk <= numberOfChunks; chunk++) {
+			final int start = from;
+			final int end = chunk == numberOfChunks ? size :
+				(int) (size * Math.sqrt((double) chunk / numberOfChunks));
+			if (end <= start) {
+				continue;
+			}
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					computeRows(vectors, spectra, transforms, proximity,
+							start, end);
+					return null;
+				}
+			});
+			from = end;
+		}
+		workers.invokeAll(tasks);
+		return proximity;
+	}
+
+	private static void computeRows(double[][] vectors, Spectra spectra,
+			double[][][] transforms, double[][] proximity, int from, int to) {
+		double[] pair = new double[2];
+		for (int i = from; i < to; i++) {
+			if (spectra == null) {
+				for (int j = 0; j < i; j++) {
+					proximity[i][j] = directDistance(vectors[i], vectors[j]);
+				}
+				continue;
+			}
+			// Two distances per inverse transform.
+			for (int j = 0; j < i; j += 2) {
+				int next = Math.min(j + 1, i - 1);
+				spectra.distances(transforms[i], transforms[j],
+						transforms[next], pair);
+				proximity[i][j] = pair[0];
+				proximity[i][next] = pair[1];
+			}
+		}
+	}
+
+	/**
+	 * Correlates lag by lag, in the same order as the definition.
+	 */
+	private static double directDistance(double[] v1, double[] v2) {
+		int n = v1.length;
 		double maxCorrelation = 0;
-		
+
 		for(int t = 0; t < 2*n + 1; t++){
-			double correlation = 0;
-			//System.out.println("From " + Math.max(0, t - n) + " to " + Math.min(n, t));
-			for(int tau = Math.max(0, t - n); tau < Math.min(n, t); tau++){
-				correlation += v1.getEntry(tau)*v2.getEntry(n+tau-t);
-				//stats.incrCoordCount();
-				//stats.incrCoordCount();
-			}
+			int from = Math.max(0, t - n);
+			double correlation = Kernels.dot(v1, from, v2, n+from-t,
+					Math.min(n, t) - from);
 			if(correlation > maxCorrelation){
 				maxCorrelation = correlation;
 			}
 		}
-		
+
 		return maxCorrelation;
 	}
+
+	/**
+	 * Fourier transforms of vectors of dimension n, zero padded to a power
+	 * of two of at least 2n-1, so the circular correlation of two transforms
+	 * holds the correlation at every lag without wrapping around.
+	 */
+	private static final class Spectra {
+
+		private final int n;
+		private final int length;
+		private final double[] cos;
+		private final double[] sin;
+		private final int[] reversed;
+
+		Spectra(int n) {
+			this.n = n;
+			int length = 1;
+			while (length < 2*n - 1) {
+				length <<= 1;
+			}
+			this.length = length;
+			this.cos = new double[length / 2];
+			this.sin = new double[length / 2];
+			for (int k = 0; k < length / 2; k++) {
+				double angle = 2 * java.lang.Math.PI * k / length;
+				this.cos[k] = java.lang.Math.cos(angle);
+				this.sin[k] = java.lang.Math.sin(angle);
+			}
+			this.reversed = new int[length];
+			int bits = Integer.numberOfTrailingZeros(length);
+			for (int i = 0; i < length; i++) {
+				this.reversed[i] = bits == 0 ?
+						0 : Integer.reverse(i) >>> (32 - bits);
+			}
+		}
+
+		/**
+		 * @return The real and imaginary parts of the transform.
+		 */
+		double[][] transform(double[] vector) {
+			double[] re = new double[this.length];
+			double[] im = new double[this.length];
+			System.arraycopy(vector, 0, re, 0, this.n);
+			fft(re, im, false);
+			return new double[][] {re, im};
+		}
+
+		/**
+		 * Computes the distances from the first vector to the second and
+		 * third one with a single inverse transform: both correlations are
+		 * real, so one goes into the real part and the other into the
+		 * imaginary part.
+		 *
+		 * @param result	Receives the two distances.
+		 */
+		void distances(double[][] first, double[][] second,
+				double[][] third, double[] result) {
+			double[] re = new double[this.length];
+			double[] im = new double[this.length];
+			double[] aRe = first[0], aIm = first[1];
+			double[] bRe = second[0], bIm = second[1];
+			double[] cRe = third[0], cIm = third[1];
+			for (int k = 0; k < this.length; k++) {
+				// a * conj(b) + i * a * conj(c)
+				double abRe = aRe[k]*bRe[k] + aIm[k]*bIm[k];
+				double abIm = aIm[k]*bRe[k] - aRe[k]*bIm[k];
+				double acRe = aRe[k]*cRe[k] + aIm[k]*cIm[k];
+				double acIm = aIm[k]*cRe[k] - aRe[k]*cIm[k];
+				re[k] = abRe - acIm;
+				im[k] = abIm + acRe;
+			}
+			fft(re, im, true);
+
+			// Lags -(n-1) up to n-1, the distance is never below 0.
+			double maxSecond = 0;
+			double maxThird = 0;
+			for (int lag = 0; lag < this.n; lag++) {
+				maxSecond = Math.max(maxSecond, re[lag]);
+				maxThird = Math.max(maxThird, im[lag]);
+			}
+			for (int lag = this.length - this.n + 1; lag < this.length; lag++) {
+				maxSecond = Math.max(maxSecond, re[lag]);
+				maxThird = Math.max(maxThird, im[lag]);
+			}
+			result[0] = maxSecond / this.length;
+			result[1] = maxThird / this.length;
+		}
+
+		/**
+		 * In-place iterative radix-2 transform. The inverse transform is
+		 * not scaled.
+		 */
+		private void fft(double[] re, double[] im, boolean inverse) {
+			for (int i = 0; i < this.length; i++) {
+				int j = this.reversed[i];
+				if (i < j) {
+					double swap = re[i];
+					re[i] = re[j];
+					re[j] = swap;
+					swap = im[i];
+					im[i] = im[j];
+					im[j] = swap;
+				}
+			}
+			for (int half = 1; half < this.length; half <<= 1) {
+				int step = this.length / (2*half);
+				for (int start = 0; start < this.length; start += 2*half) {
+					for (int k = 0; k < half; k++) {
+						double wRe = this.cos[k*step];
+						double wIm = inverse ?
+								this.sin[k*step] : -this.sin[k*step];
+						int top = start + k;
+						int bottom = top + half;
+						double tRe = wRe*re[bottom] - wIm*im[bottom];
+						double tIm = wRe*im[bottom] + wIm*re[bottom];
+						re[bottom] = re[top] - tRe;
+						im[bottom] = im[top] - tIm;
+						re[top] += tRe;
+						im[top] += tIm;
+					}
+				}
+			}
+		}
+	}
 }
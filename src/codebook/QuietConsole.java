@@ -0,0 +1,135 @@
+package codebook;
+
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ * Silences System.out for the current thread only.
+ *
+ * Some library code (LASSO in particular) prints progress to System.out.
+ * Instead of swapping System.out for every call, which affects all threads
+ * of the JVM, a filtering stream is installed once in front of the original
+ * stream. Threads that are muted have their output dropped, all other threads
+ * print as usual.
+ *
+ * Muting nests: a thread stays muted until every call to mute has been
+ * matched by a call to unmute.
+ *
+ */
+public final class QuietConsole {
+
+	// Number of mute calls of the thread not yet matched by unmute.
+	private static final ThreadLocal<Integer> depth =
+			new ThreadLocal<Integer>() {
+		@Override
+		protected Integer initialValue() {
+			return Integer.valueOf(0);
+		}
+	};
+
+	private QuietConsole() {
+	}
+
+	/**
+	 * Drops everything the current thread prints to System.out until the
+	 * matching call to unmute.
+	 */
+	public static void mute() {
+		if (!(System.out instanceof FilteringStream)) {
+			install();
+		}
+		depth.set(Integer.valueOf(depth.get().intValue() + 1));
+	}
+
+	/**
+	 * Undoes one call to mute. The current thread prints to System.out again
+	 * once every call to mute has been undone.
+	 */
+	public static void unmute() {
+		int current = depth.get().intValue();
+		if (current > 0) {
+			depth.set(Integer.valueOf(current - 1));
+		}
+	}
+
+	private static synchronized void install() {
+		// Check again, another thread might have installed it meanwhile.
+		if (!(System.out instanceof FilteringStream)) {
+			System.setOut(new FilteringStream(System.out));
+		}
+	}
+
+	private static boolean isMuted() {
+		return depth.get().intValue() > 0;
+	}
+
+	/**
+	 * Print stream forwarding to the original System.out, except for muted
+	 * threads. The formatting methods return early for muted threads, so no
+	 * text is formatted only to be thrown away.
+	 */
+	private static class FilteringStream extends PrintStream {
+
+		FilteringStream(PrintStream original) {
+			super(original, true);
+		}
+
+		@Override
+		public void write(int b) {
+			if (!isMuted()) {
+				super.write(b);
+			}
+		}
+
+		@Override
+		public void write(byte[] buf, int off, int len) {
+			if (!isMuted()) {
+				super.write(buf, off, len);
+			}
+		}
+
+		@Override
+		public void print(String s) {
+			if (!isMuted()) {
+				super.print(s);
+			}
+		}
+
+		@Override
+		public void println() {
+			if (!isMuted()) {
+				super.println();
+			}
+		}
+
+		@Override
+		public void println(String x) {
+			if (!isMuted()) {
+				super.println(x);
+			}
+		}
+
+		@Override
+		public void println(Object x) {
+			if (!isMuted()) {
+				super.println(x);
+			}
+		}
+
+		@Override
+		public PrintStream format(String format, Object... args) {
+			if (!isMuted()) {
+				super.format(format, args);
+			}
+			return this;
+		}
+
+		@Override
+		public PrintStream format(Locale l, String format, Object... args) {
+			if (!isMuted()) {
+				super.format(l, format, args);
+			}
+			return this;
+		}
+	}
+}
@@ -0,0 +1,394 @@
+package data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import metrics.Counter;
+import metrics.Metrics;
+import util.DaemonThreadFactory;
+
+/**
+ * Reads folders of CSV files on a pool of worker threads.
+ *
+ * Files are parsed concurrently, but always handed on in the order of their
+ * names, so the frames and labels of a folder come out in the same order as
+ * when the files are read one after the other. A file that cannot be read is
+ * skipped.
+ *
+ * Folders are remembered: the recordings of a folder are parsed once per
+ * process and shared by every data type, and a labeled frame set is built
+ * once per folder and data type.
+ *
+ */
+public class CorpusLoader {
+
+	private static final FilenameFilter csvFilter = new FilenameFilter() {
+		@Override
+		public boolean accept(File dir, String name) {
+			return name.toLowerCase().endsWith(".csv");
+		}
+	};
+
+	/**
+	 * Receives the files of a folder, in order.
+	 */
+	public interface FileHandler {
+
+		void handle(File file, Data data) throws IOException;
+	}
+
+	private static final Counter filesSkipped = Metrics.counter(
+			"mlii_files_skipped", "CSV files skipped because they cannot be"
+					+ " read.");
+
+	private static CorpusLoader defaultLoader;
+
+	private final int numberOfThreads;
+	private final ExecutorService executor;
+
+	private final ConcurrentMap<String, Future<ParsedFolder>> folders =
+			new ConcurrentHashMap<String, Future<ParsedFolder>>();
+	private final ConcurrentMap<String, Future<LabeledFrameSet>> labeled =
+			new ConcurrentHashMap<String, Future<LabeledFrameSet>>();
+	private final ConcurrentMap<String, Future<FrameStore>> unlabeled =
+			new ConcurrentHashMap<String, Future<FrameStore>>();
+
+	/**
+	 * @param numberOfThreads	Number of files parsed concurrently.
+	 */
+	public CorpusLoader(final int numberOfThreads) {
+		if (numberOfThreads < 1) {
+			throw new IllegalArgumentException(
+					"numberOfThreads should be at least 1.");
+		}
+		this.numberOfThreads = numberOfThreads;
+		this.executor = Executors.newFixedThreadPool(numberOfThreads,
+				new DaemonThreadFactory("loader"));
+	}
+
+	/**
+	 * Returns the loader shared by the application. It uses one worker
+	 * thread per available core.
+	 *
+	 * @return The default corpus loader.
+	 */
+	public static synchronized CorpusLoader getDefault() {
+		if (defaultLoader == null) {
+			defaultLoader = new CorpusLoader(
+					Runtime.getRuntime().availableProcessors());
+		}
+		return defaultLoader;
+	}
+
+	/**
+	 * Returns the frames and labels of all CSV files in a folder. Files too
+	 * short for a single window are skipped.
+	 *
+	 * @param folderName	The folder.
+	 * @param type			Type of data, which determines the windows and
+	 * 						labels.
+	 * @return The labeled frames, file after file.
+	 * @throws IOException
+	 */
+	public LabeledFrameSet loadLabeled(final String folderName,
+			final Class<? extends Data> type) throws IOException {
+		final File folder = new File(folderName);
+		return memoize(this.labeled, key(folder, type),
+				new Callable<LabeledFrameSet>() {
+			@Override
+			public LabeledFrameSet call() throws IOException {
+				ParsedFolder parsedFolder = parse(folder);
+				List<File> files = parsedFolder.files;
+				List<Recording> parsed = parsedFolder.recordings;
+				List<FrameSet> frames = new ArrayList<FrameSet>();
+				List<String> labels = new ArrayList<String>();
+				for (int i = 0; i < files.size(); i++) {
+					if (parsed.get(i) == null) {
+						continue;
+					}
+					Data data = newData(type);
+					data.setRecording(files.get(i), parsed.get(i));
+					if (data.numOfWindows() == 0) {
+						continue;
+					}
+					frames.add(data.toFrameSet());
+					labels.addAll(data.getLabels());
+				}
+				return FrameSet.concatenate(frames).labelFrameSet(labels);
+			}
+		});
+	}
+
+	/**
+	 * Returns the frames of all CSV files in a folder, from the frame store
+	 * of the folder. The store is built first if it is out of date. A folder
+	 * that changed since it was loaded, like a filtered folder that was
+	 * written again, is loaded again.
+	 *
+	 * @param folderName	The folder.
+	 * @param storeFile		The frame store file of the folder.
+	 * @param type			Type of data, which determines the windows.
+	 * @return The frames, file after file.
+	 * @throws IOException
+	 */
+	public FrameSet loadUnlabeled(final String folderName,
+			final File storeFile, final Class<? extends Data> type)
+					throws IOException {
+		final File folder = new File(folderName);
+		String key = key(folder, type);
+		Callable<FrameStore> loader = new Callable<FrameStore>() {
+			@Override
+			public FrameStore call() throws IOException {
+				return FrameStore.openOrBuild(storeFile, folder, type);
+			}
+		};
+		FrameStore store = memoize(this.unlabeled, key, loader);
+		if (!store.isUpToDate(folder)) {
+			this.unlabeled.remove(key);
+			store = memoize(this.unlabeled, key, loader);
+		}
+		return store.getFrameSet();
+	}
+
+	/**
+	 * Parses the files concurrently and hands them to the handler in order,
+	 * on the calling thread. At most twice the number of threads files are
+	 * parsed ahead of the handler, so no more than that many are in memory.
+	 * Files that cannot be read are skipped.
+	 *
+	 * @param files		The files.
+	 * @param type		Type of data.
+	 * @param handler	Receives every file that could be read.
+	 * @throws IOException	If the handler fails.
+	 */
+	public void forEachFile(final File[] files,
+			final Class<? extends Data> type, final FileHandler handler)
+					throws IOException {
+		Deque<Future<Recording>> ahead = new ArrayDeque<Future<Recording>>();
+		int next = 0;
+		for (int i = 0; i < files.length; i++) {
+			while (next < files.length
+					&& ahead.size() < 2 * this.numberOfThreads) {
+				ahead.add(this.parseFile(files[next++]));
+			}
+			Recording recording = this.await(ahead.poll());
+			if (recording != null) {
+				Data data = newData(type);
+				data.setRecording(files[i], recording);
+				handler.handle(files[i], data);
+			}
+		}
+	}
+
+	/**
+	 * Returns a hash of the names and contents of the CSV files of a folder,
+	 * which identifies the data: a folder with the same fingerprint holds
+	 * the same recordings and labels.
+	 *
+	 * @param folderName	The folder.
+	 * @return The SHA-256 hash in hexadecimal.
+	 * @throws IOException	If a file cannot be read.
+	 */
+	public static String fingerprint(String folderName) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform supports SHA-256.
+			throw new IllegalStateException(e);
+		}
+		byte[] buffer = new byte[1 << 16];
+		for (File file : csvFiles(new File(folderName))) {
+			byte[] name = file.getName().getBytes("UTF-8");
+			digest.update(ByteBuffer.allocate(12).putInt(name.length)
+					.putLong(file.length()).array());
+			digest.update(name);
+			InputStream input = new FileInputStream(file);
+			try {
+				int count;
+				while ((count = input.read(buffer)) > 0) {
+					digest.update(buffer, 0, count);
+				}
+			} finally {
+				input.close();
+			}
+		}
+		byte[] hash = digest.digest();
+		StringBuilder hex = new StringBuilder(2 * hash.length);
+		for (byte b : hash) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16))
+					.append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Forgets every folder loaded so far, for instance after the files
+	 * changed.
+	 */
+	public void clear() {
+		this.folders.clear();
+		this.labeled.clear();
+		this.unlabeled.clear();
+	}
+
+	/**
+	 * Parses all CSV files of a folder, once per folder.
+	 */
+	private ParsedFolder parse(final File folder) throws IOException {
+		return memoize(this.folders, key(folder, null),
+				new Callable<ParsedFolder>() {
+			@Override
+			public ParsedFolder call() throws IOException {
+				List<File> files = Arrays.asList(csvFiles(folder));
+				List<Future<Recording>> futures =
+						new ArrayList<Future<Recording>>(files.size());
+				for (File file : files) {
+					futures.add(parseFile(file));
+				}
+				List<Recording> result =
+						new ArrayList<Recording>(files.size());
+				for (Future<Recording> future : futures) {
+					result.add(await(future));
+				}
+				return new ParsedFolder(files,
+						Collections.unmodifiableList(result));
+			}
+		});
+	}
+
+	private Future<Recording> parseFile(final File file) {
+		return this.executor.submit(new Callable<Recording>() {
+			@Override
+			public Recording call() throws IOException {
+				return Recording.read(file);
+			}
+		});
+	}
+
+	/**
+	 * @return The recording, or null if the file cannot be read.
+	 */
+	private Recording await(Future<Recording> future) throws IOException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				//Empty files are skipped
+				filesSkipped.increment();
+				return null;
+			}
+			throw rethrow(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Loading was interrupted.");
+		}
+	}
+
+	/**
+	 * Runs the loader once per key, even if several threads ask for the same
+	 * key at once. A load that fails is forgotten, so it can be retried.
+	 */
+	private static <T> T memoize(ConcurrentMap<String, Future<T>> cache,
+			String key, Callable<T> loader) throws IOException {
+		Future<T> future = cache.get(key);
+		if (future == null) {
+			FutureTask<T> task = new FutureTask<T>(loader);
+			future = cache.putIfAbsent(key, task);
+			if (future == null) {
+				future = task;
+				task.run();
+			}
+		}
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			cache.remove(key, future);
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw rethrow(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Loading was interrupted.");
+		}
+	}
+
+	private static RuntimeException rethrow(Throwable cause) {
+		if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		}
+		if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		throw new IllegalStateException(cause);
+	}
+
+	private static String key(File folder, Class<? extends Data> type)
+			throws IOException {
+		return folder.getCanonicalPath()
+				+ (type == null ? "" : "|" + type.getName());
+	}
+
+	/**
+	 * Returns the CSV files of a folder, sorted by name, so the order of the
+	 * frames does not depend on the file system. All folders of recordings
+	 * are listed this way.
+	 *
+	 * @param folder	The folder.
+	 * @return The CSV files.
+	 * @throws IOException	If the folder cannot be read.
+	 */
+	public static File[] csvFiles(File folder) throws IOException {
+		File[] files = folder.listFiles(csvFilter);
+		if (files == null) {
+			throw new IOException(folder + " is not a readable folder.");
+		}
+		Arrays.sort(files);
+		return files;
+	}
+
+	private static Data newData(Class<? extends Data> type) {
+		try {
+			return type.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalArgumentException("Cannot instantiate " + type, e);
+		}
+	}
+
+	/**
+	 * The CSV files of a folder, in the order of their names, and
+	 * their recordings. The recording of a file that cannot be read is null.
+	 */
+	private static class ParsedFolder {
+
+		final List<File> files;
+		final List<Recording> recordings;
+
+		ParsedFolder(List<File> files, List<Recording> recordings) {
+			this.files = files;
+			this.recordings = recordings;
+		}
+	}
+}
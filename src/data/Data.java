@@ -12,7 +12,9 @@ import weka.core.FastVector;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.converters.ArffSaver;
-import weka.core.converters.CSVLoader;
+import metrics.Counter;
+import metrics.Metrics;
+import metrics.Timer;
 
 public abstract class Data {
 	
@@ -22,7 +24,13 @@ public abstract class Data {
 	protected static final Double overlap = 0.5; //In percentage of window overlap
 	protected static final int instancesBetweenWindows = ((Double)((1-Data.overlap) * Data.windowSize)).intValue();
 	
+	private static final Timer windowTimer = Metrics.timer(
+			"mlii_window_seconds", "Time to cut a recording into frames.");
+	private static final Counter framesWindowed = Metrics.counter(
+			"mlii_frames_windowed", "Frames cut from recordings.");
+	
 	protected Instances instances;
+	protected Recording recording;
 	protected File file;
 	protected String className;
 	protected FastVector classValues;
@@ -35,6 +43,21 @@ public abstract class Data {
 		this.instances = instances;
 	}
 	
+	/**
+	 * @return The number of samples in a window.
+	 */
+	public static int getWindowSize() {
+		return Data.windowSize;
+	}
+	
+	/**
+	 * @return The number of samples between the starts of two overlapping
+	 * windows.
+	 */
+	public static int getInstancesBetweenWindows() {
+		return Data.instancesBetweenWindows;
+	}
+	
 	public String getClassName() {
 		return this.className;
 	}
@@ -50,38 +73,94 @@ public abstract class Data {
 	public void readCSV (final File file) throws IOException {
 		this.file = file;
 		
-		//Read CSV file with t,x,y and z data
-		CSVLoader loader = new CSVLoader();
-		loader.setSource(file);
-		this.instances = loader.getDataSet();
-		
-		//Add magnitudes
-		Attribute magAttr = this.instances.attribute("magnitude");
-		if (magAttr == null) {
-			magAttr = new Attribute("magnitude",4);
-			this.instances.insertAttributeAt(magAttr, 4);
+		//Read CSV file with t,x,y,z data, the magnitudes are added while
+		//reading. Weka instances are only made when they are asked for.
+		this.recording = Recording.read(file);
+		this.instances = null;
+	}
+	
+	/**
+	 * Uses a recording that was already read from the given file.
+	 */
+	void setRecording (final File file, final Recording recording) {
+		this.file = file;
+		this.recording = recording;
+		this.instances = null;
+	}
+	
+	/**
+	 * Returns the instances, with attributes t, x, y, z, magnitude and the
+	 * class. The instances of a CSV file are made the first time they are
+	 * needed.
+	 */
+	protected Instances getInstances() {
+		if (this.instances == null && this.recording != null) {
+			this.instances = this.toInstances(this.recording);
 		}
+		return this.instances;
+	}
+	
+	/**
+	 * @return The number of samples.
+	 */
+	protected int numInstances() {
+		if (this.recording != null) return this.recording.size();
+		return this.instances.numInstances();
+	}
+	
+	/**
+	 * Makes the same instances as reading the file with Weka's CSVLoader and
+	 * adding the magnitude and class attributes used to.
+	 */
+	private Instances toInstances(final Recording recording) {
+		final boolean hasClass = recording.isLabeled() && 
+				recording.getLabelName().equals(this.className);
+		final boolean hasOtherLabel = recording.isLabeled() && !hasClass;
 		
-		Instance instance;
-		Double x,y,z,mag;
-		for (int i = 0; i < this.instances.numInstances(); i++) {
-			instance = this.instances.instance(i);
-			x = instance.value(1);
-			y = instance.value(2);
-			z = instance.value(3);
-			mag = Math.sqrt(x*x + y*y + z*z);
-			instance.setValue(4, mag);
+		FastVector attributes = new FastVector(hasOtherLabel ? 7 : 6);
+		attributes.addElement(new Attribute("t"));
+		attributes.addElement(new Attribute("x"));
+		attributes.addElement(new Attribute("y"));
+		attributes.addElement(new Attribute("z"));
+		attributes.addElement(new Attribute("magnitude"));
+		FastVector labelValues = new FastVector();
+		for (String value : recording.getLabelValues()) {
+			labelValues.addElement(value);
 		}
-		
-		//Add class. All instances are set to unknown.
-		//Only add if it wasn't there already
-		Attribute classAttr = this.instances.attribute(this.className);
-		if (classAttr == null) {
-			classAttr = new Attribute(this.className,this.classValues,5);
-			this.instances.insertAttributeAt(classAttr,5);
+		if (hasClass) {
+			attributes.addElement(new Attribute(this.className, labelValues));
+		} else {
+			//All instances are set to unknown.
+			attributes.addElement(new Attribute(this.className, this.classValues));
+			if (hasOtherLabel) {
+				attributes.addElement(
+						new Attribute(recording.getLabelName(), labelValues));
+			}
 		}
 		
-		this.instances.setClass(classAttr);
+		String name = this.file.getName().replaceAll("\\.[^.]*$", "");
+		Instances result = new Instances(name, attributes, recording.size());
+		result.setClassIndex(5);
+		final double[] t = recording.getT();
+		final double[] x = recording.getX();
+		final double[] y = recording.getY();
+		final double[] z = recording.getZ();
+		final double[] mag = recording.getMagnitude();
+		final int[] labels = recording.getLabels();
+		for (int i = 0; i < recording.size(); i++) {
+			double[] values = new double[attributes.size()];
+			values[0] = t[i];
+			values[1] = x[i];
+			values[2] = y[i];
+			values[3] = z[i];
+			values[4] = mag[i];
+			values[5] = hasClass ? labels[i] : Instance.missingValue();
+			if (hasOtherLabel) {
+				values[6] = labels[i];
+			}
+			result.add(new Instance(1.0, values));
+		}
+		return result;
 	}
 	
 	public static void toArff(final File file, final Instances instances) throws IOException {
@@ -100,6 +179,29 @@ public abstract class Data {
 	abstract public Data getWindow(final int index);
 	abstract public int numOfWindows();
 	
+	/**
+	 * @return The number of samples from the start of one window to the start
+	 * of the next.
+	 */
+	abstract protected int windowStride();
+	
+	/**
+	 * Creates a frame set with a frame of magnitudes for every window. The
+	 * frames are views on the magnitudes of the samples, overlapping windows
+	 * share their samples and nothing is copied.
+	 * 
+	 * @throws IllegalArgumentException	If there are no windows.
+	 */
+	public FrameSet toFrameSet() {
+		long start = windowTimer.start();
+		FrameSet frames = new FrameSet(new FrameStorage.WindowStorage(
+				this.getMagnitudes(), this.windowStride(), Data.windowSize),
+				this.numOfWindows());
+		framesWindowed.add(frames.size());
+		windowTimer.stop(start);
+		return frames;
+	}
+	
 	/**
 	 * Creates a list of frames, which contain a vector of magnitudes.
 	 * Frames are 1 second long and overlap 50%
@@ -108,22 +210,30 @@ public abstract class Data {
 		//Prepare list for number of windows
 		final int size = this.numOfWindows();
 		final List<ArrayRealVector> list = new ArrayList<ArrayRealVector>(size);
-		final Attribute magAttr = this.instances.attribute("magnitude");
+		final double[] magnitudes = this.getMagnitudes();
+		final int stride = this.windowStride();
 		//Iterate windows
 		for (int i = 0; i < size; i++) {
-			Data window = this.getWindow(i);
-			ArrayRealVector vector = new ArrayRealVector(Data.windowSize);
-			//Iterate instances in window
-			for (int j = 0; j < Data.windowSize; j++) {
-				vector.setEntry(j, window.instances.instance(j).value(magAttr));
-			}
-			list.add(vector);
+			list.add(new ArrayRealVector(magnitudes, i*stride, Data.windowSize));
 		}
-		
-		
 		return list;
 	}
 	
+	/**
+	 * @return The magnitude of every sample. The array can be longer than the
+	 * number of samples, and must not be modified.
+	 */
+	private double[] getMagnitudes() {
+		if (this.recording != null) return this.recording.getMagnitude();
+		final Instances instances = this.getInstances();
+		final Attribute magAttr = instances.attribute("magnitude");
+		final double[] magnitudes = new double[instances.numInstances()];
+		for (int i = 0; i < magnitudes.length; i++) {
+			magnitudes[i] = instances.instance(i).value(magAttr);
+		}
+		return magnitudes;
+	}
+	
 	abstract public List<String> getLabels();	
 	
 	@Override
@@ -131,11 +241,11 @@ public abstract class Data {
 		String str = "";
 		str += "[windowsize:"+Data.windowSize;
 		str += ",overlap:"+Data.overlap;
-		str += ",numberOfInstances:"+this.instances.numInstances();
+		str += ",numberOfInstances:"+this.numInstances();
 		str += ",numberOfWindows:"+this.numOfWindows();
 		str += ",className:"+this.className;
 		str += ",classValues:"+this.classValues;
-		str += ",instances:\n"+this.instances;
+		str += ",instances:\n"+this.getInstances();
 		return str;
 	}
 	
@@ -0,0 +1,89 @@
+package data;
+
+import org.apache.commons.math3.exception.MathUnsupportedOperationException;
+import org.apache.commons.math3.exception.OutOfRangeException;
+import org.apache.commons.math3.linear.AbstractRealMatrix;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * Read-only matrix view of the storage of a frame set. Either the frames are
+ * the columns (dimension x size), or the frames are the rows (size x
+ * dimension).
+ *
+ */
+class FrameMatrixView extends AbstractRealMatrix {
+	
+	private final FrameStorage storage;
+	private final int size;
+	private final int dimension;
+	private final boolean framesAsRows;
+	
+	FrameMatrixView(FrameStorage storage, int size, int dimension,
+			boolean framesAsRows) {
+		this.storage = storage;
+		this.size = size;
+		this.dimension = dimension;
+		this.framesAsRows = framesAsRows;
+	}
+
+	@Override
+	public int getRowDimension() {
+		return this.framesAsRows ? this.size : this.dimension;
+	}
+
+	@Override
+	public int getColumnDimension() {
+		return this.framesAsRows ? this.dimension : this.size;
+	}
+
+	@Override
+	public RealMatrix createMatrix(int rowDimension, int columnDimension) {
+		return new Array2DRowRealMatrix(rowDimension, columnDimension);
+	}
+
+	@Override
+	public RealMatrix copy() {
+		return new Array2DRowRealMatrix(getData(), false);
+	}
+
+	@Override
+	public double getEntry(int row, int column) {
+		if (row < 0 || row >= getRowDimension()) {
+			throw new OutOfRangeException(row, 0, getRowDimension() - 1);
+		}
+		if (column < 0 || column >= getColumnDimension()) {
+			throw new OutOfRangeException(column, 0, getColumnDimension() - 1);
+		}
+		if (this.framesAsRows) {
+			return this.storage.get(row, column);
+		}
+		return this.storage.get(column, row);
+	}
+
+	@Override
+	public void setEntry(int row, int column, double value) {
+		throw new MathUnsupportedOperationException();
+	}
+	
+	@Override
+	public double[][] getData() {
+		int rows = getRowDimension();
+		int columns = getColumnDimension();
+		double[][] result = new double[rows][columns];
+		if (this.framesAsRows) {
+			for (int i = 0; i < rows; i++) {
+				this.storage.copyFrame(i, result[i], 0);
+			}
+		} else {
+			double[] frame = new double[rows];
+			for (int j = 0; j < columns; j++) {
+				this.storage.copyFrame(j, frame, 0);
+				for (int i = 0; i < rows; i++) {
+					result[i][j] = frame[i];
+				}
+			}
+		}
+		return result;
+	}
+}
@@ -1,56 +1,179 @@
 package data;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.List;
 import java.util.Random;
 
 import org.apache.commons.math3.linear.Array2DRowRealMatrix;
 import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.commons.math3.linear.RealVector;
 
+/**
+ * A set of frames of equal dimension.
+ * 
+ * Frames are usually stored one after the other in a single array: frame i
+ * occupies the entries i*dimension up to (i+1)*dimension. A frame set can 
+ * also be mapped from a frame store file, see {@link FrameStore}, in which 
+ * case the frames stay off the heap, or hold only the nonzero samples of
+ * mostly zero frames such as activations. Read-only views of a frame or of the 
+ * whole set as a matrix refer to the storage instead of copying it.
+ *
+ */
 public class FrameSet {
 	
-	private final List<ArrayRealVector> frameSet;
+	private final FrameStorage storage;
 	private final int size;
 	private final int dimension;
 	
 	public FrameSet(Collection<ArrayRealVector> frameSet){
+		if(frameSet.isEmpty()){
+			throw new IllegalArgumentException("A frame set needs at least one frame.");
+		}
+		this.size = frameSet.size();
+		this.dimension = frameSet.iterator().next().getDimension();
+		double[] data = new double[this.size*this.dimension];
 		
-		this.frameSet = new ArrayList<ArrayRealVector>(frameSet);
-		this.size = this.frameSet.size();
-		this.dimension = this.frameSet.get(0).getDimension();
-		
-		/**
-		List<ArrayRealVector> newFrameSet = new ArrayList<ArrayRealVector>();
-		
-		for(RealVector frame : frameSet){
-			
-			// Ignore incomplete frames.
-			if(frame.getDimension() == windowSize){
-				newFrameSet.add(new ArrayRealVector(frame));
+		int offset = 0;
+		for(ArrayRealVector frame : frameSet){
+			if(frame.getDimension() != this.dimension){
+				throw new IllegalArgumentException("All frames should have dimension " 
+						+ this.dimension + ".");
 			}
+			System.arraycopy(frame.getDataRef(), 0, data, offset, this.dimension);
+			offset += this.dimension;
 		}
-		
-		this.frameSet = newFrameSet;
-		this.size = this.frameSet.size();
-		this.dimension = this.frameSet.get(0).getDimension();
-		**/
-	}
-	
-	public LabeledFrameSet labelFrameSet(Collection<String> labels){
-		return new LabeledFrameSet(frameSet, labels);
+		this.storage = new FrameStorage.ArrayStorage(data, this.dimension);
 	}
 	
 	public FrameSet(Array2DRowRealMatrix frameMatrix) {
 		this.size = frameMatrix.getColumnDimension();
 		this.dimension = frameMatrix.getRowDimension();
+		double[] data = new double[this.size*this.dimension];
 		
-		this.frameSet = new ArrayList<ArrayRealVector>(this.size);
+		double[][] rows = frameMatrix.getDataRef();
+		for(int i = 0; i < this.dimension; i++){
+			for(int j = 0; j < this.size; j++){
+				data[j*this.dimension + i] = rows[i][j];
+			}
+		}
+		this.storage = new FrameStorage.ArrayStorage(data, this.dimension);
+	}
+	
+	/**
+	 * Creates a frame set on the given array, which is not copied. Frame i
+	 * occupies the entries i*dimension up to (i+1)*dimension.
+	 * 
+	 * @param data		The frames one after the other. The frame set takes
+	 * 					ownership, the array must not be modified afterwards.
+	 * @param dimension	The dimension of a frame.
+	 */
+	public FrameSet(double[] data, int dimension){
+		if(dimension < 1 || data.length == 0 || data.length % dimension != 0){
+			throw new IllegalArgumentException("The data should hold a positive number" 
+					+ " of frames of dimension " + dimension + ".");
+		}
+		this.storage = new FrameStorage.ArrayStorage(data, dimension);
+		this.dimension = dimension;
+		this.size = data.length / dimension;
+	}
+	
+	/**
+	 * Creates a frame set holding only the nonzero samples of its frames, in
+	 * compressed sparse rows. The arrays are not copied. The nonzero samples 
+	 * of frame i are at the positions offsets[i] up to offsets[i+1] of 
+	 * indices and values, in increasing order of index.
+	 * 
+	 * @param offsets	Start of every frame, followed by the total number of
+	 * 					nonzero samples.
+	 * @param indices	Index of every nonzero sample within its frame.
+	 * @param values	Value of every nonzero sample.
+	 * @param dimension	The dimension of a frame.
+	 */
+	public FrameSet(int[] offsets, int[] indices, double[] values, 
+			int dimension){
+		if(dimension < 1 || offsets.length < 2 || offsets[0] != 0
+				|| offsets[offsets.length - 1] > indices.length
+				|| indices.length != values.length){
+			throw new IllegalArgumentException("The arrays should hold at least"
+					+ " one frame in compressed sparse rows.");
+		}
+		this.storage = new FrameStorage.SparseStorage(
+				offsets, indices, values, dimension);
+		this.dimension = dimension;
+		this.size = offsets.length - 1;
+	}
+	
+	/**
+	 * Creates a frame set on the given storage.
+	 */
+	FrameSet(FrameStorage storage, int size){
+		if(size < 1){
+			throw new IllegalArgumentException("A frame set needs at least one frame.");
+		}
+		this.storage = storage;
+		this.dimension = storage.dimension;
+		this.size = size;
+	}
+	
+	/**
+	 * Creates a frame set sharing the frames of the given one.
+	 */
+	protected FrameSet(FrameSet frames){
+		this.storage = frames.storage;
+		this.size = frames.size;
+		this.dimension = frames.dimension;
+	}
+	
+	/**
+	 * Opens all frames of a frame store file. The frames are mapped into
+	 * memory instead of read, see {@link FrameStore}.
+	 * 
+	 * @param storeFile	The frame store file.
+	 * @return The frames of the store.
+	 * @throws IOException
+	 */
+	public static FrameSet open(File storeFile) throws IOException {
+		return FrameStore.open(storeFile).getFrameSet();
+	}
+	
+	/**
+	 * Copies the frames of the given frame sets, one set after the other,
+	 * into a single new frame set.
+	 * 
+	 * @param frameSets	Frame sets of equal dimension.
+	 * @return The concatenated frame set.
+	 */
+	public static FrameSet concatenate(Collection<FrameSet> frameSets){
+		if(frameSets.isEmpty()){
+			throw new IllegalArgumentException("A frame set needs at least one frame.");
+		}
+		int dimension = frameSets.iterator().next().dimension();
+		int size = 0;
+		for(FrameSet frameSet : frameSets){
+			if(frameSet.dimension() != dimension){
+				throw new IllegalArgumentException("All frames should have dimension " 
+						+ dimension + ".");
+			}
+			size += frameSet.size();
+		}
 		
-		for(int i = 0; i < this.size; i++){
-			frameSet.add(new ArrayRealVector(frameMatrix.getColumnVector(i)));
+		double[] data = new double[size*dimension];
+		int offset = 0;
+		for(FrameSet frameSet : frameSets){
+			for(int i = 0; i < frameSet.size(); i++){
+				frameSet.copyFrame(i, data, offset);
+				offset += dimension;
+			}
 		}
+		return new FrameSet(data, dimension);
+	}
+	
+	public LabeledFrameSet labelFrameSet(Collection<String> labels){
+		return new LabeledFrameSet(this, labels);
 	}
 
 	public int size(){
@@ -61,28 +184,127 @@ public class FrameSet {
 		return this.dimension;
 	}
 	
+	/**
+	 * @return A copy of frame i.
+	 */
 	public ArrayRealVector getFrame(int i){
-		return frameSet.get(i).copy();
+		checkFrame(i);
+		double[] frame = new double[this.dimension];
+		this.storage.copyFrame(i, frame, 0);
+		return new ArrayRealVector(frame, false);
 	}
 	
-	public Array2DRowRealMatrix toMatrixTranspose(){
-		Array2DRowRealMatrix res = new Array2DRowRealMatrix(this.size, this.dimension);
-		int i = 0;
-		for(ArrayRealVector vector : frameSet){
-			res.setRowVector(i, vector);
-			i++;
+	/**
+	 * @return Sample j of frame i.
+	 */
+	public double get(int i, int j){
+		checkFrame(i);
+		if(j < 0 || j >= this.dimension){
+			throw new IndexOutOfBoundsException("Sample " + j + " of " + this.dimension);
 		}
-		return res;
+		return this.storage.get(i, j);
+	}
+	
+	/**
+	 * Copies frame i into the destination array, starting at the given offset.
+	 */
+	public void copyFrame(int i, double[] destination, int offset){
+		checkFrame(i);
+		this.storage.copyFrame(i, destination, offset);
+	}
+	
+	/**
+	 * @return The number of nonzero samples of frame i.
+	 */
+	public int nonZeros(int i){
+		checkFrame(i);
+		return this.storage.nonZeros(i);
 	}
 	
+	/**
+	 * Copies the nonzero samples of frame i, in increasing order of index.
+	 * The arrays should have room for the nonzero samples of the frame.
+	 * 
+	 * @param indices	Receives the index of every nonzero sample.
+	 * @param values	Receives the value of every nonzero sample.
+	 * @return The number of nonzero samples.
+	 */
+	public int copyNonZeros(int i, int[] indices, double[] values){
+		checkFrame(i);
+		return this.storage.copyNonZeros(i, indices, values);
+	}
+	
+	/**
+	 * @return The fraction of the samples of all frames that is nonzero.
+	 */
+	public double density(){
+		long count = 0;
+		for(int i = 0; i < this.size; i++){
+			count += this.storage.nonZeros(i);
+		}
+		return (double) count / ((long) this.size * this.dimension);
+	}
+	
+	/**
+	 * @return Whether only the nonzero samples of the frames are stored.
+	 */
+	public boolean isSparse(){
+		return this.storage.isSparse();
+	}
+	
+	/**
+	 * @return A read-only view of frame i.
+	 */
+	public RealVector getFrameView(int i){
+		checkFrame(i);
+		return new FrameView(this.storage, i, this.dimension);
+	}
+	
+	/**
+	 * Selects frames of this set, without copying them.
+	 * 
+	 * @param frames	Indices of the frames to select, in order.
+	 * @return A frame set with the selected frames.
+	 */
+	public FrameSet select(int[] frames){
+		for(int i : frames){
+			checkFrame(i);
+		}
+		return new FrameSet(this.storage.subset(frames.clone()), frames.length);
+	}
+	
+	/**
+	 * @return A read-only dimension x size view with the frames as columns.
+	 */
+	public RealMatrix asMatrix(){
+		return new FrameMatrixView(this.storage, this.size, this.dimension, false);
+	}
+	
+	/**
+	 * @return A read-only size x dimension view with the frames as rows.
+	 */
+	public RealMatrix asMatrixTranspose(){
+		return new FrameMatrixView(this.storage, this.size, this.dimension, true);
+	}
+	
+	/**
+	 * @return A copy with the frames as rows.
+	 */
+	public Array2DRowRealMatrix toMatrixTranspose(){
+		return new Array2DRowRealMatrix(asMatrixTranspose().getData(), false);
+	}
+	
+	/**
+	 * @return A copy with the frames as columns.
+	 */
 	public Array2DRowRealMatrix toMatrix(){
-		Array2DRowRealMatrix res = new Array2DRowRealMatrix(this.dimension, this.size);
-		int i = 0;
-		for(ArrayRealVector vector : frameSet){
-			res.setColumnVector(i, vector);
-			i++;
+		return new Array2DRowRealMatrix(asMatrix().getData(), false);
+	}
+	
+	private void checkFrame(int i){
+		if(i < 0 || i >= this.size){
+			throw new IndexOutOfBoundsException("Frame " + i + " of " + this.size);
 		}
-		return res;
 	}
 	
 	public ArrayList<FrameSet> partition(String partitionType, int partitionOption){
@@ -120,32 +342,37 @@ public class FrameSet {
 		//System.out.println(numberOfPartitions);
 			
 		ArrayList<FrameSet> partitions = new ArrayList<FrameSet>(numberOfPartitions);
-		List<ArrayRealVector> source = permuteList(frameSet);
+		int[] order = permutation(this.size);
 		
 		for(int i = 0; i < numberOfPartitions; i++){
-			ArrayList<ArrayRealVector> subset = new ArrayList<ArrayRealVector>();
-			int addUntil = Math.min(i+itemsPerPartition, this.size);
-			for(int j = i; j < addUntil; j++){
-				subset.add(source.get(j));
-			}
-			partitions.add(new FrameSet(subset));
+			int addFrom = i*itemsPerPartition;
+			// The last partition takes the frames that are left over.
+			int addUntil = i == numberOfPartitions - 1 ? 
+					this.size : Math.min(addFrom+itemsPerPartition, this.size);
+			// Partitions select from the storage of this set, nothing is copied.
+			int[] subset = Arrays.copyOfRange(order, addFrom, addUntil);
+			partitions.add(new FrameSet(this.storage.subset(subset), subset.length));
 		}
 		
 		return partitions;
 	}
 	
-	private List<ArrayRealVector> permuteList(List<ArrayRealVector> input){
-		
-		ArrayList<ArrayRealVector> res = new ArrayList<ArrayRealVector>();
-		ArrayList<ArrayRealVector> start = new ArrayList<ArrayRealVector>(input);
+	/**
+	 * @return The numbers 0 up to n in random order (Fisher-Yates).
+	 */
+	private static int[] permutation(int n){
+		int[] res = new int[n];
+		for(int i = 0; i < n; i++){
+			res[i] = i;
+		}
 		Random generator = new Random();
-		
-		while(start.size() > 0){
-			int index = Math.abs(generator.nextInt()) % start.size();
-			res.add(start.remove(index));
+		for(int i = n - 1; i > 0; i--){
+			int index = generator.nextInt(i + 1);
+			int swap = res[i];
+			res[i] = res[index];
+			res[index] = swap;
 		}
 		return res;
-		
 	}
 	
 }
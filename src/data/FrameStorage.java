@@ -0,0 +1,303 @@
+package data;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import util.Kernels;
+
+/**
+ * Storage of the frames of a frame set. Frames are addressed by index and
+ * only ever read, so storages can be shared between frame sets.
+ *
+ */
+abstract class FrameStorage {
+	
+	protected final int dimension;
+	
+	FrameStorage(int dimension) {
+		this.dimension = dimension;
+	}
+	
+	/**
+	 * @return Sample j of frame i.
+	 */
+	abstract double get(int i, int j);
+	
+	/**
+	 * Copies frame i into the destination array, starting at the given offset.
+	 */
+	abstract void copyFrame(int i, double[] destination, int offset);
+	
+	/**
+	 * @return The number of nonzero samples of frame i.
+	 */
+	int nonZeros(int i) {
+		int count = 0;
+		for (int j = 0; j < this.dimension; j++) {
+			if (get(i, j) != 0) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Copies the nonzero samples of frame i, in increasing order of sample.
+	 * 
+	 * @param indices	Receives the index of every nonzero sample.
+	 * @param values	Receives the value of every nonzero sample.
+	 * @return The number of nonzero samples.
+	 */
+	int copyNonZeros(int i, int[] indices, double[] values) {
+		int count = 0;
+		for (int j = 0; j < this.dimension; j++) {
+			double value = get(i, j);
+			if (value != 0) {
+				indices[count] = j;
+				values[count++] = value;
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * @return Whether only the nonzero samples are stored.
+	 */
+	boolean isSparse() {
+		return false;
+	}
+	
+	/**
+	 * @return A storage holding the given frames of this storage, in the
+	 * 			given order. Nothing is copied.
+	 */
+	FrameStorage subset(int[] frames) {
+		return new SubsetStorage(this, frames);
+	}
+	
+	/**
+	 * Frames one after the other in a single array on the heap.
+	 */
+	static class ArrayStorage extends FrameStorage {
+		
+		private final double[] data;
+		
+		ArrayStorage(double[] data, int dimension) {
+			super(dimension);
+			this.data = data;
+		}
+
+		@Override
+		double get(int i, int j) {
+			return this.data[i*this.dimension + j];
+		}
+
+		@Override
+		void copyFrame(int i, double[] destination, int offset) {
+			System.arraycopy(this.data, i*this.dimension, destination, offset, 
+					this.dimension);
+		}
+
+		@Override
+		int nonZeros(int i) {
+			return Kernels.countNonZeros(this.data, i*this.dimension,
+					this.dimension);
+		}
+
+		@Override
+		int copyNonZeros(int i, int[] indices, double[] values) {
+			return Kernels.compress(this.data, i*this.dimension,
+					this.dimension, indices, values);
+		}
+	}
+	
+	/**
+	 * Windows over a series of samples, a new window starting every stride
+	 * samples. Windows overlap if the stride is smaller than the dimension.
+	 */
+	static class WindowStorage extends FrameStorage {
+		
+		private final double[] samples;
+		private final int stride;
+		
+		WindowStorage(double[] samples, int stride, int dimension) {
+			super(dimension);
+			this.samples = samples;
+			this.stride = stride;
+		}
+
+		@Override
+		double get(int i, int j) {
+			return this.samples[i*this.stride + j];
+		}
+
+		@Override
+		void copyFrame(int i, double[] destination, int offset) {
+			System.arraycopy(this.samples, i*this.stride, destination, offset, 
+					this.dimension);
+		}
+
+		@Override
+		int nonZeros(int i) {
+			return Kernels.countNonZeros(this.samples, i*this.stride,
+					this.dimension);
+		}
+
+		@Override
+		int copyNonZeros(int i, int[] indices, double[] values) {
+			return Kernels.compress(this.samples, i*this.stride,
+					this.dimension, indices, values);
+		}
+	}
+	
+	/**
+	 * Frames of single precision in memory-mapped segments of a frame store
+	 * file. A segment holds a whole number of frames, because a single 
+	 * mapping cannot exceed 2GB.
+	 */
+	static class MappedStorage extends FrameStorage {
+		
+		private final FloatBuffer[] segments;
+		private final int framesPerSegment;
+		private final long firstFrame;
+		
+		MappedStorage(FloatBuffer[] segments, int framesPerSegment, 
+				long firstFrame, int dimension) {
+			super(dimension);
+			this.segments = segments;
+			this.framesPerSegment = framesPerSegment;
+			this.firstFrame = firstFrame;
+		}
+		
+		/**
+		 * @return The storage starting at the given frame of this one.
+		 */
+		MappedStorage from(long frame) {
+			return new MappedStorage(this.segments, this.framesPerSegment, 
+					this.firstFrame + frame, this.dimension);
+		}
+
+		@Override
+		double get(int i, int j) {
+			long frame = this.firstFrame + i;
+			int position = (int) (frame % this.framesPerSegment) * this.dimension;
+			return this.segments[(int) (frame / this.framesPerSegment)]
+					.get(position + j);
+		}
+
+		@Override
+		void copyFrame(int i, double[] destination, int offset) {
+			long frame = this.firstFrame + i;
+			FloatBuffer segment = 
+					this.segments[(int) (frame / this.framesPerSegment)];
+			// Absolute reads only, the buffers are shared between threads.
+			int position = (int) (frame % this.framesPerSegment) * this.dimension;
+			for (int j = 0; j < this.dimension; j++) {
+				destination[offset + j] = segment.get(position + j);
+			}
+		}
+	}
+	
+	/**
+	 * Only the nonzero samples of the frames, in compressed sparse rows: the
+	 * nonzero samples of frame i are at the positions offsets[i] up to
+	 * offsets[i+1] of indices and values, in increasing order of sample.
+	 */
+	static class SparseStorage extends FrameStorage {
+		
+		private final int[] offsets;
+		private final int[] indices;
+		private final double[] values;
+		
+		SparseStorage(int[] offsets, int[] indices, double[] values, 
+				int dimension) {
+			super(dimension);
+			this.offsets = offsets;
+			this.indices = indices;
+			this.values = values;
+		}
+		
+		@Override
+		double get(int i, int j) {
+			int position = Arrays.binarySearch(
+					this.indices, this.offsets[i], this.offsets[i+1], j);
+			return position >= 0 ? this.values[position] : 0;
+		}
+		
+		@Override
+		void copyFrame(int i, double[] destination, int offset) {
+			Arrays.fill(destination, offset, offset + this.dimension, 0);
+			for (int k = this.offsets[i]; k < this.offsets[i+1]; k++) {
+				destination[offset + this.indices[k]] = this.values[k];
+			}
+		}
+		
+		@Override
+		int nonZeros(int i) {
+			return this.offsets[i+1] - this.offsets[i];
+		}
+		
+		@Override
+		int copyNonZeros(int i, int[] indices, double[] values) {
+			int count = nonZeros(i);
+			System.arraycopy(this.indices, this.offsets[i], indices, 0, count);
+			System.arraycopy(this.values, this.offsets[i], values, 0, count);
+			return count;
+		}
+		
+		@Override
+		boolean isSparse() {
+			return true;
+		}
+	}
+	
+	/**
+	 * Selection of the frames of another storage.
+	 */
+	static class SubsetStorage extends FrameStorage {
+		
+		private final FrameStorage source;
+		private final int[] frames;
+		
+		SubsetStorage(FrameStorage source, int[] frames) {
+			super(source.dimension);
+			this.source = source;
+			this.frames = frames;
+		}
+
+		@Override
+		double get(int i, int j) {
+			return this.source.get(this.frames[i], j);
+		}
+
+		@Override
+		void copyFrame(int i, double[] destination, int offset) {
+			this.source.copyFrame(this.frames[i], destination, offset);
+		}
+		
+		@Override
+		int nonZeros(int i) {
+			return this.source.nonZeros(this.frames[i]);
+		}
+		
+		@Override
+		int copyNonZeros(int i, int[] indices, double[] values) {
+			return this.source.copyNonZeros(this.frames[i], indices, values);
+		}
+		
+		@Override
+		boolean isSparse() {
+			return this.source.isSparse();
+		}
+		
+		@Override
+		FrameStorage subset(int[] frames) {
+			// Select from the source directly, instead of stacking subsets.
+			int[] composed = new int[frames.length];
+			for (int k = 0; k < frames.length; k++) {
+				composed[k] = this.frames[frames[k]];
+			}
+			return new SubsetStorage(this.source, composed);
+		}
+	}
+}
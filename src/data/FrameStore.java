@@ -0,0 +1,356 @@
+package data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Binary file holding the frames of a set of CSV files, so the CSV files only
+ * have to be parsed once.
+ *
+ * The file starts with a header, followed by the frames one after the other
+ * as single precision floats. All values are little-endian:
+ *
+ * <pre>
+ * int    magic ("FRMS")
+ * int    version
+ * int    dimension of a frame
+ * int    number of source files
+ * long   number of frames
+ * long   offset of the first frame in the file
+ * per source file:
+ *   int    length of the name in bytes
+ *   byte[] name, UTF-8
+ *   long   index of the first frame of the file
+ *   long   number of frames of the file
+ * </pre>
+ *
+ * An opened store maps the frames into memory instead of reading them, so
+ * the frames stay off the heap and are only paged in when they are used.
+ *
+ */
+public class FrameStore {
+
+	private static final int magic = 0x534D5246; // "FRMS" little-endian
+	private static final int version = 1;
+	private static final int fixedHeaderLength = 32;
+	private static final Charset utf8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final int dimension;
+	private final long size;
+	private final List<String> sourceNames;
+	private final long[] sourceFirstFrames;
+	private final long[] sourceSizes;
+	private final FrameStorage.MappedStorage storage;
+
+	private FrameStore(File file, int dimension, long size,
+			List<String> sourceNames, long[] sourceFirstFrames,
+			long[] sourceSizes, FrameStorage.MappedStorage storage) {
+		this.file = file;
+		this.dimension = dimension;
+		this.size = size;
+		this.sourceNames = sourceNames;
+		this.sourceFirstFrames = sourceFirstFrames;
+		this.sourceSizes = sourceSizes;
+		this.storage = storage;
+	}
+
+	/**
+	 * Opens the store in the given file, unless it is missing or older than
+	 * one of the CSV files in the folder, in which case it is built first.
+	 *
+	 * @param storeFile	The frame store file.
+	 * @param folder	Folder with the CSV files.
+	 * @param type		Type of data in the CSV files, which determines how
+	 * 					they are cut into frames.
+	 * @return The opened store.
+	 * @throws IOException
+	 */
+	public static FrameStore openOrBuild(File storeFile, File folder,
+			Class<? extends Data> type) throws IOException {
+		File[] csvFiles = CorpusLoader.csvFiles(folder);
+		if (storeFile.exists()) {
+			try {
+				FrameStore store = FrameStore.open(storeFile);
+				if (store.isUpToDate(csvFiles)) {
+					return store;
+				}
+			} catch (IOException e) {
+				System.out.println("Frame store " + storeFile
+						+ " is corrupt, rebuilding it.");
+			}
+		}
+		return FrameStore.build(storeFile, csvFiles, type);
+	}
+
+	/**
+	 * Cuts every CSV file into frames and writes them all to a new store.
+	 * Files that cannot be read are stored without frames. The store is
+	 * written to a temporary file first, so a store that exists is always
+	 * complete.
+	 *
+	 * @param storeFile	The frame store file to write.
+	 * @param csvFiles	The CSV files.
+	 * @param type		Type of data in the CSV files.
+	 * @return The opened store.
+	 * @throws IOException
+	 */
+	public static FrameStore build(File storeFile, final File[] csvFiles,
+			Class<? extends Data> type) throws IOException {
+		System.out.println("Building frame store " + storeFile + "...");
+		byte[][] names = new byte[csvFiles.length][];
+		long headerLength = fixedHeaderLength;
+		for (int i = 0; i < csvFiles.length; i++) {
+			names[i] = csvFiles[i].getName().getBytes(utf8);
+			headerLength += 4 + names[i].length + 16;
+		}
+		// Align the frames on a float.
+		long dataOffset = (headerLength + 3) / 4 * 4;
+
+		final long[] firstFrames = new long[csvFiles.length];
+		final long[] sizes = new long[csvFiles.length];
+		final int dimension = Data.windowSize;
+		long size = 0;
+
+		storeFile.getAbsoluteFile().getParentFile().mkdirs();
+		File temporary = new File(storeFile.getPath() + ".tmp");
+		RandomAccessFile output = new RandomAccessFile(temporary, "rw");
+		try {
+			final FileChannel channel = output.getChannel();
+			channel.truncate(0);
+			channel.position(dataOffset);
+			final ByteBuffer buffer = ByteBuffer.allocate(dimension * 4 * 256)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			final double[] values = new double[dimension];
+			// Files are parsed in parallel, but handled in order.
+			final int[] sourceIndex = {0};
+			final long[] frameCount = {0};
+			CorpusLoader.getDefault().forEachFile(csvFiles, type,
+					new CorpusLoader.FileHandler() {
+				@Override
+				public void handle(File file, Data data) throws IOException {
+					// Unreadable files in between have no frames.
+					while (csvFiles[sourceIndex[0]] != file) {
+						firstFrames[sourceIndex[0]++] = frameCount[0];
+					}
+					firstFrames[sourceIndex[0]] = frameCount[0];
+					int count = data.numOfWindows();
+					if (count > 0) {
+						FrameSet frames = data.toFrameSet();
+						for (int frame = 0; frame < count; frame++) {
+							if (buffer.remaining() < values.length * 4) {
+								writeFully(channel, buffer);
+							}
+							frames.copyFrame(frame, values, 0);
+							for (double value : values) {
+								buffer.putFloat((float) value);
+							}
+						}
+					}
+					sizes[sourceIndex[0]++] = count;
+					frameCount[0] += count;
+				}
+			});
+			while (sourceIndex[0] < csvFiles.length) {
+				firstFrames[sourceIndex[0]++] = frameCount[0];
+			}
+			size = frameCount[0];
+			writeFully(channel, buffer);
+
+			ByteBuffer header = ByteBuffer.allocate((int) headerLength)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(magic).putInt(version).putInt(dimension)
+					.putInt(csvFiles.length).putLong(size).putLong(dataOffset);
+			for (int i = 0; i < csvFiles.length; i++) {
+				header.putInt(names[i].length).put(names[i])
+						.putLong(firstFrames[i]).putLong(sizes[i]);
+			}
+			channel.position(0);
+			writeFully(channel, header);
+			channel.force(false);
+		} finally {
+			output.close();
+		}
+		Files.move(temporary.toPath(), storeFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		return FrameStore.open(storeFile);
+	}
+
+	/**
+	 * Opens an existing store. Only the header is read, the frames are
+	 * mapped into memory.
+	 *
+	 * @param storeFile	The frame store file.
+	 * @return The opened store.
+	 * @throws IOException	If the file cannot be read or is not a valid store.
+	 */
+	public static FrameStore open(File storeFile) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(storeFile, "r");
+		try {
+			FileChannel channel = input.getChannel();
+			ByteBuffer header = readFully(channel, 0, fixedHeaderLength);
+			if (header.getInt() != magic) {
+				throw new IOException(storeFile + " is not a frame store.");
+			}
+			int fileVersion = header.getInt();
+			if (fileVersion != version) {
+				throw new IOException("Unsupported frame store version "
+						+ fileVersion + ".");
+			}
+			int dimension = header.getInt();
+			int sourceCount = header.getInt();
+			long size = header.getLong();
+			long dataOffset = header.getLong();
+			if (dimension < 1 || sourceCount < 0 || size < 0
+					|| dataOffset < fixedHeaderLength
+					|| dataOffset + size * dimension * 4 > channel.size()) {
+				throw new IOException(storeFile + " is truncated or corrupt.");
+			}
+
+			ByteBuffer sources = readFully(channel, fixedHeaderLength,
+					(int) (dataOffset - fixedHeaderLength));
+			List<String> names = new ArrayList<String>(sourceCount);
+			long[] firstFrames = new long[sourceCount];
+			long[] sizes = new long[sourceCount];
+			try {
+				for (int i = 0; i < sourceCount; i++) {
+					byte[] name = new byte[sources.getInt()];
+					sources.get(name);
+					names.add(new String(name, utf8));
+					firstFrames[i] = sources.getLong();
+					sizes[i] = sources.getLong();
+				}
+			} catch (RuntimeException e) {
+				throw new IOException(storeFile + " has a corrupt header.", e);
+			}
+
+			// Map whole frames per segment, a mapping is limited to 2GB.
+			int framesPerSegment = Integer.MAX_VALUE / (dimension * 4);
+			int segmentCount = (int) ((size + framesPerSegment - 1)
+					/ framesPerSegment);
+			FloatBuffer[] segments = new FloatBuffer[segmentCount];
+			for (int s = 0; s < segmentCount; s++) {
+				long first = (long) s * framesPerSegment;
+				long frames = Math.min(framesPerSegment, size - first);
+				segments[s] = channel.map(FileChannel.MapMode.READ_ONLY,
+						dataOffset + first * dimension * 4,
+						frames * dimension * 4)
+						.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+			}
+			// The mappings stay valid after the channel is closed.
+			return new FrameStore(storeFile, dimension, size,
+					Collections.unmodifiableList(names), firstFrames, sizes,
+					new FrameStorage.MappedStorage(segments, framesPerSegment,
+							0, dimension));
+		} finally {
+			input.close();
+		}
+	}
+
+	public int dimension() {
+		return this.dimension;
+	}
+
+	/**
+	 * @return The number of frames in the store.
+	 */
+	public long size() {
+		return this.size;
+	}
+
+	/**
+	 * @return The names of the CSV files the store was built from.
+	 */
+	public List<String> getSourceNames() {
+		return this.sourceNames;
+	}
+
+	/**
+	 * @return All frames of the store, mapped from the file.
+	 */
+	public FrameSet getFrameSet() {
+		return getFrameSet(0, this.size);
+	}
+
+	/**
+	 * @param sourceName	Name of one of the CSV files.
+	 * @return The frames of the given CSV file, mapped from the file.
+	 */
+	public FrameSet getFrameSet(String sourceName) {
+		int index = this.sourceNames.indexOf(sourceName);
+		if (index < 0) {
+			throw new IllegalArgumentException(sourceName
+					+ " is not in frame store " + this.file + ".");
+		}
+		return getFrameSet(this.sourceFirstFrames[index],
+				this.sourceSizes[index]);
+	}
+
+	private FrameSet getFrameSet(long firstFrame, long frames) {
+		if (frames > Integer.MAX_VALUE) {
+			throw new IllegalStateException("A frame set holds at most "
+					+ Integer.MAX_VALUE + " frames.");
+		}
+		return new FrameSet(this.storage.from(firstFrame), (int) frames);
+	}
+
+	/**
+	 * @return Whether the store was built from exactly the CSV files in the
+	 * 			folder, after they were last modified.
+	 * @throws IOException
+	 */
+	boolean isUpToDate(File folder) throws IOException {
+		return this.isUpToDate(CorpusLoader.csvFiles(folder));
+	}
+
+	/**
+	 * A store is up to date if it was built from exactly the given files,
+	 * after they were last modified.
+	 */
+	private boolean isUpToDate(File[] csvFiles) {
+		if (csvFiles.length != this.sourceNames.size()) {
+			return false;
+		}
+		long built = this.file.lastModified();
+		for (int i = 0; i < csvFiles.length; i++) {
+			if (!csvFiles[i].getName().equals(this.sourceNames.get(i))
+					|| csvFiles[i].lastModified() > built) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer)
+			throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private static ByteBuffer readFully(FileChannel channel, long position,
+			int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of frame store.");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+}
@@ -0,0 +1,118 @@
+package data;
+
+import org.apache.commons.math3.exception.MathUnsupportedOperationException;
+import org.apache.commons.math3.exception.NotPositiveException;
+import org.apache.commons.math3.exception.OutOfRangeException;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealVector;
+
+/**
+ * Read-only vector view of a single frame in the storage of a frame set.
+ * Nothing is copied until a method has to return a new vector.
+ *
+ */
+class FrameView extends RealVector {
+	
+	private final FrameStorage storage;
+	private final int frame;
+	private final int dimension;
+	
+	FrameView(FrameStorage storage, int frame, int dimension) {
+		this.storage = storage;
+		this.frame = frame;
+		this.dimension = dimension;
+	}
+
+	@Override
+	public int getDimension() {
+		return this.dimension;
+	}
+
+	@Override
+	public double getEntry(int index) {
+		if (index < 0 || index >= this.dimension) {
+			throw new OutOfRangeException(index, 0, this.dimension - 1);
+		}
+		return this.storage.get(this.frame, index);
+	}
+
+	@Override
+	public void setEntry(int index, double value) {
+		throw new MathUnsupportedOperationException();
+	}
+
+	@Override
+	public RealVector append(RealVector v) {
+		return copy().append(v);
+	}
+
+	@Override
+	public RealVector append(double d) {
+		return copy().append(d);
+	}
+
+	@Override
+	public RealVector getSubVector(int index, int n) {
+		if (n < 0) {
+			throw new NotPositiveException(n);
+		}
+		if (index < 0 || index + n > this.dimension) {
+			throw new OutOfRangeException(index + n, 0, this.dimension);
+		}
+		double[] result = new double[n];
+		for (int i = 0; i < n; i++) {
+			result[i] = this.storage.get(this.frame, index + i);
+		}
+		return new ArrayRealVector(result, false);
+	}
+
+	@Override
+	public void setSubVector(int index, RealVector v) {
+		throw new MathUnsupportedOperationException();
+	}
+
+	@Override
+	public boolean isNaN() {
+		for (int i = 0; i < this.dimension; i++) {
+			if (Double.isNaN(this.storage.get(this.frame, i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean isInfinite() {
+		if (isNaN()) {
+			return false;
+		}
+		for (int i = 0; i < this.dimension; i++) {
+			if (Double.isInfinite(this.storage.get(this.frame, i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public ArrayRealVector copy() {
+		return new ArrayRealVector(toArray(), false);
+	}
+
+	@Override
+	public RealVector ebeDivide(RealVector v) {
+		return copy().ebeDivide(v);
+	}
+
+	@Override
+	public RealVector ebeMultiply(RealVector v) {
+		return copy().ebeMultiply(v);
+	}
+	
+	@Override
+	public double[] toArray() {
+		double[] result = new double[this.dimension];
+		this.storage.copyFrame(this.frame, result, 0);
+		return result;
+	}
+}
@@ -15,6 +15,14 @@ public class LabeledFrameSet extends FrameSet {
 		this.labels = new ArrayList<String>(labels);
 	}
 	
+	/**
+	 * Labels the frames of the given frame set, without copying them.
+	 */
+	LabeledFrameSet(FrameSet frameSet, Collection<String> labels){
+		super(frameSet);
+		this.labels = new ArrayList<String>(labels);
+	}
+	
 	public String getLabel(int frameIndex){
 		return this.labels.get(frameIndex);
 	}
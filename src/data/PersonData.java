@@ -24,13 +24,18 @@ public class PersonData extends Data {
 
 	@Override
 	public Data getWindow(final int index) {
-		final int fromIndex = Data.windowSize * index;
-		return new WalkData(new Instances(this.instances, fromIndex, Data.windowSize));
+		final int fromIndex = this.windowStride() * index;
+		return new WalkData(new Instances(this.getInstances(), fromIndex, Data.windowSize));
+	}
+	
+	@Override
+	protected int windowStride() {
+		return Data.windowSize;
 	}
 	
 	@Override
 	public int numOfWindows() {
-		return this.instances.numInstances() / Data.windowSize;
+		return this.numInstances() / Data.windowSize;
 	}
 
 	@Override
@@ -0,0 +1,413 @@
+package data;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import metrics.Counter;
+import metrics.Metrics;
+import metrics.Timer;
+
+/**
+ * The samples of one accelerometer CSV file, column by column in primitive
+ * arrays.
+ *
+ * The files have the fixed schema t,x,y,z with an optional label column, for
+ * instance walking. Files written by WalkData.writeData also have a
+ * magnitude column after z, which is skipped: the magnitude is always
+ * computed from x, y and z. Values may be padded with spaces, column names
+ * may be quoted and lines may end in \n, \r\n or \r. The parser reads the
+ * bytes of the file in blocks and parses the numbers from them directly,
+ * without creating a string per value, and computes the magnitude of every
+ * sample while reading.
+ *
+ */
+public final class Recording {
+
+	private static final int bufferSize = 1 << 16;
+	private static final Timer parseTimer = Metrics.timer(
+			"mlii_parse_seconds", "Time to parse a CSV file.");
+	private static final Counter samplesParsed = Metrics.counter(
+			"mlii_samples_parsed", "Samples parsed from CSV files.");
+	// Powers of ten that are exact as a double.
+	private static final double[] exactPowersOfTen = new double[23];
+	static {
+		exactPowersOfTen[0] = 1;
+		for (int i = 1; i < exactPowersOfTen.length; i++) {
+			exactPowersOfTen[i] = exactPowersOfTen[i-1] * 10;
+		}
+	}
+
+	private final int size;
+	private final double[] t;
+	private final double[] x;
+	private final double[] y;
+	private final double[] z;
+	private final double[] magnitude;
+	private final String labelName;
+	private final List<String> labelValues;
+	private final int[] labels;
+
+	private Recording(int size, double[] t, double[] x, double[] y,
+			double[] z, double[] magnitude, String labelName,
+			List<String> labelValues, int[] labels) {
+		this.size = size;
+		this.t = t;
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.magnitude = magnitude;
+		this.labelName = labelName;
+		this.labelValues = labelValues;
+		this.labels = labels;
+	}
+
+	/**
+	 * Reads a CSV file with t,x,y,z and optionally a label column.
+	 *
+	 * @param file	The CSV file.
+	 * @return The samples of the file.
+	 * @throws IOException	If the file cannot be read, has no header or does
+	 * 						not follow the schema.
+	 */
+	public static Recording read(File file) throws IOException {
+		long start = parseTimer.start();
+		InputStream input = new FileInputStream(file);
+		try {
+			Recording recording = new Parser(input, file.getName()).parse();
+			samplesParsed.add(recording.size());
+			return recording;
+		} finally {
+			input.close();
+			parseTimer.stop(start);
+		}
+	}
+
+	/**
+	 * @return The number of samples.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/*
+	 * The arrays below are shared, not copied, and must not be modified.
+	 * They can be longer than the number of samples.
+	 */
+
+	public double[] getT() {
+		return this.t;
+	}
+
+	public double[] getX() {
+		return this.x;
+	}
+
+	public double[] getY() {
+		return this.y;
+	}
+
+	public double[] getZ() {
+		return this.z;
+	}
+
+	public double[] getMagnitude() {
+		return this.magnitude;
+	}
+
+	/**
+	 * @return Whether the file has a label column.
+	 */
+	public boolean isLabeled() {
+		return this.labelName != null;
+	}
+
+	/**
+	 * @return The name of the label column, or null.
+	 */
+	public String getLabelName() {
+		return this.labelName;
+	}
+
+	/**
+	 * @return The distinct labels, in order of first appearance.
+	 */
+	public List<String> getLabelValues() {
+		return this.labelValues;
+	}
+
+	/**
+	 * @return Per sample the index of its label in the label values.
+	 */
+	public int[] getLabels() {
+		return this.labels;
+	}
+
+	/**
+	 * Parses the bytes of a file as they are read.
+	 */
+	private static class Parser {
+
+		private final InputStream input;
+		private final String name;
+		private final byte[] buffer = new byte[bufferSize];
+		private int position = 0;
+		private int limit = 0;
+		private int line = 1;
+
+		// Scratch space for a value that needs the slow path.
+		private final StringBuilder text = new StringBuilder();
+
+		Parser(InputStream input, String name) {
+			this.input = input;
+			this.name = name;
+		}
+
+		Recording parse() throws IOException {
+			List<String> header = parseHeader();
+			boolean hasMagnitude = header.size() > 4 && 
+					header.get(4).equals("magnitude");
+			int columns = hasMagnitude ? 5 : 4;
+			if (header.size() < columns || header.size() > columns + 1) {
+				throw error("expected header t,x,y,z[,magnitude][,label] but"
+						+ " found " + header);
+			}
+			String labelName = header.size() > columns ? 
+					header.get(columns) : null;
+			List<String> labelValues = new ArrayList<String>();
+
+			int capacity = 1024;
+			double[] t = new double[capacity];
+			double[] x = new double[capacity];
+			double[] y = new double[capacity];
+			double[] z = new double[capacity];
+			double[] magnitude = new double[capacity];
+			int[] labels = labelName == null ? null : new int[capacity];
+
+			int size = 0;
+			while (skipEmptyLines()) {
+				if (size == capacity) {
+					capacity *= 2;
+					t = Arrays.copyOf(t, capacity);
+					x = Arrays.copyOf(x, capacity);
+					y = Arrays.copyOf(y, capacity);
+					z = Arrays.copyOf(z, capacity);
+					magnitude = Arrays.copyOf(magnitude, capacity);
+					if (labels != null) {
+						labels = Arrays.copyOf(labels, capacity);
+					}
+				}
+				t[size] = parseNumber();
+				expect(',');
+				double xi = x[size] = parseNumber();
+				expect(',');
+				double yi = y[size] = parseNumber();
+				expect(',');
+				double zi = z[size] = parseNumber();
+				magnitude[size] = Math.sqrt(xi*xi + yi*yi + zi*zi);
+				if (hasMagnitude) {
+					expect(',');
+					parseNumber();
+				}
+				if (labels != null) {
+					expect(',');
+					String label = parseText();
+					int index = labelValues.indexOf(label);
+					if (index < 0) {
+						index = labelValues.size();
+						labelValues.add(label);
+					}
+					labels[size] = index;
+				}
+				endOfLine();
+				size++;
+			}
+			return new Recording(size, t, x, y, z, magnitude, labelName,
+					Collections.unmodifiableList(labelValues), labels);
+		}
+
+		private List<String> parseHeader() throws IOException {
+			if (!skipEmptyLines()) {
+				throw new EOFException(name + " is empty.");
+			}
+			List<String> header = new ArrayList<String>(6);
+			header.add(unquote(parseText()));
+			while (peek() == ',') {
+				position++;
+				header.add(unquote(parseText()));
+			}
+			endOfLine();
+			return header;
+		}
+
+		/**
+		 * Parses a decimal number, surrounded by optional spaces. Numbers
+		 * with at most 15 significant digits and no exponent are computed
+		 * from their digits, with the same result as Double.parseDouble;
+		 * anything else is handed to Double.parseDouble.
+		 */
+		private double parseNumber() throws IOException {
+			skipSpaces();
+			text.setLength(0);
+			boolean negative = false;
+			int c = peek();
+			if (c == '-' || c == '+') {
+				negative = c == '-';
+				next();
+				c = peek();
+			}
+			long mantissa = 0;
+			int digits = 0;
+			int decimals = 0;
+			boolean fraction = false;
+			boolean anyDigit = false;
+			boolean simple = true;
+			while (true) {
+				if (c >= '0' && c <= '9') {
+					anyDigit = true;
+					if (mantissa != 0 || c != '0') {
+						digits++;
+					}
+					// Below 10^15 the mantissa is exact as a double.
+					if (digits > 15) {
+						simple = false;
+					} else {
+						mantissa = mantissa * 10 + (c - '0');
+						if (fraction) {
+							decimals++;
+						}
+					}
+				} else if (c == '.' && !fraction) {
+					fraction = true;
+				} else if (c == 'e' || c == 'E' || c == '+' || c == '-') {
+					simple = false;
+				} else {
+					break;
+				}
+				next();
+				c = peek();
+			}
+			if (!anyDigit) {
+				throw error("expected a number");
+			}
+			skipSpaces();
+			if (simple && decimals < exactPowersOfTen.length) {
+				// Both operands are exact, so the division rounds once.
+				double value = mantissa / exactPowersOfTen[decimals];
+				return negative ? -value : value;
+			}
+			try {
+				return Double.parseDouble(text.toString().trim());
+			} catch (NumberFormatException e) {
+				throw error("invalid number " + text);
+			}
+		}
+
+		/**
+		 * Parses text up to the next comma or end of line, without the
+		 * surrounding spaces.
+		 */
+		private String parseText() throws IOException {
+			text.setLength(0);
+			int c = peek();
+			while (c != ',' && c != '\n' && c != '\r' && c != -1) {
+				text.append((char) c);
+				position++;
+				c = peek();
+			}
+			return text.toString().trim();
+		}
+
+		private static String unquote(String name) {
+			if (name.length() >= 2 && name.charAt(0) == '\''
+					&& name.charAt(name.length() - 1) == '\'') {
+				return name.substring(1, name.length() - 1).trim();
+			}
+			return name;
+		}
+
+		private void expect(char expected) throws IOException {
+			if (peek() != expected) {
+				throw error("expected '" + expected + "'");
+			}
+			position++;
+		}
+
+		private void endOfLine() throws IOException {
+			skipSpaces();
+			int c = peek();
+			if (c != '\n' && c != '\r' && c != -1) {
+				throw error("expected the end of the line");
+			}
+		}
+
+		/**
+		 * Skips line breaks and blank lines.
+		 *
+		 * @return False at the end of the file.
+		 */
+		private boolean skipEmptyLines() throws IOException {
+			while (true) {
+				int c = peek();
+				if (c == '\n') {
+					line++;
+					position++;
+				} else if (c == '\r') {
+					position++;
+					if (peek() == '\n') {
+						position++;
+					}
+					line++;
+				} else if (c == ' ' || c == '\t') {
+					position++;
+				} else {
+					return c != -1;
+				}
+			}
+		}
+
+		private void skipSpaces() throws IOException {
+			int c = peek();
+			while (c == ' ' || c == '\t') {
+				position++;
+				c = peek();
+			}
+		}
+
+		/**
+		 * Consumes a character that is part of a number, keeping it for
+		 * the slow path.
+		 */
+		private void next() {
+			text.append((char) buffer[position]);
+			position++;
+		}
+
+		/**
+		 * @return The next byte without consuming it, or -1 at the end of
+		 * 			the file.
+		 */
+		private int peek() throws IOException {
+			if (position == limit) {
+				limit = input.read(buffer, 0, buffer.length);
+				position = 0;
+				if (limit <= 0) {
+					limit = 0;
+					return -1;
+				}
+			}
+			return buffer[position];
+		}
+
+		private IOException error(String message) {
+			return new IOException(name + ", line " + line + ": " + message
+					+ ".");
+		}
+	}
+}
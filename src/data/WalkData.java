@@ -27,7 +27,6 @@ import org.jfree.data.xy.XYSeriesCollection;
 import org.jfree.ui.ApplicationFrame;
 import org.jfree.ui.RefineryUtilities;
 
-import weka.core.Attribute;
 import weka.core.FastVector;
 import weka.core.Instance;
 import weka.core.Instances;
@@ -62,8 +61,9 @@ public class WalkData extends Data {
 		final XYSeries z_values = new XYSeries("z");
 		final XYSeries m_values = new XYSeries("m");
 		
-		for (int i = 0; i < this.instances.numInstances(); i++) {
-			Instance instance = this.instances.instance(i);
+		final Instances instances = this.getInstances();
+		for (int i = 0; i < instances.numInstances(); i++) {
+			Instance instance = instances.instance(i);
 			Double t = instance.value(0)/1e9;
 			x_values.add(t,(Double)instance.value(1));
 			y_values.add(t,(Double)instance.value(2));
@@ -172,7 +172,7 @@ public class WalkData extends Data {
 		if (this.numOfWindows() == 0) return;
 		
 		Instances writeInstances = new Instances(
-				this.instances,this.instances.numInstances());
+				this.getInstances(),this.numInstances());
 		for (int i = 0; i < this.numOfWindows(); i++) {
 			Data window = this.getWindow(i);
 			String label = labels.get(i);
@@ -204,35 +204,54 @@ public class WalkData extends Data {
 
 	@Override
 	public Data getWindow(final int index) {
-		final int fromIndex = Data.instancesBetweenWindows * index;
-		return new WalkData(new Instances(this.instances, fromIndex, Data.windowSize));
+		final int fromIndex = this.windowStride() * index;
+		return new WalkData(new Instances(this.getInstances(), fromIndex, Data.windowSize));
+	}
+	
+	@Override
+	protected int windowStride() {
+		return Data.instancesBetweenWindows;
 	}
 	
 	@Override
 	public int numOfWindows() {
-		if (this.instances.numInstances() < Data.windowSize) return 0;
-		return (this.instances.numInstances() - Data.windowSize) / Data.instancesBetweenWindows + 1;
+		if (this.numInstances() < Data.windowSize) return 0;
+		return (this.numInstances() - Data.windowSize) / Data.instancesBetweenWindows + 1;
 	}
 
 	@Override
 	public List<String> getLabels() {
 		final int size = this.numOfWindows();
 		final List<String> labels = new ArrayList<String>(size);
-		final Attribute classAttr = this.instances.classAttribute();
+		//Labels read from the CSV file are counted without Weka instances
+		final boolean fromRecording = this.recording != null &&
+				this.recording.isLabeled() &&
+				this.recording.getLabelName().equals(this.className);
+		final List<String> classValues = new ArrayList<String>();
+		if (fromRecording) {
+			classValues.addAll(this.recording.getLabelValues());
+		} else {
+			Enumeration<String> e = this.getInstances().classAttribute().enumerateValues();
+			while (e.hasMoreElements()) {
+				classValues.add(e.nextElement());
+			}
+		}
 
 		//Iterate windows
 		for (int i = 0; i < size; i ++) {
 			//Prepare voting map
 			Map<String, Integer> votingMap = new HashMap<String, Integer>();
-			Enumeration<String> e = this.instances.classAttribute().enumerateValues();
-			while (e.hasMoreElements()) {
-				votingMap.put(e.nextElement(),0);
+			for (String value : classValues) {
+				votingMap.put(value,0);
 			}
 			
-			Data window = this.getWindow(i);
+			final int fromIndex = this.windowStride() * i;
 			//Get majority label
-			for (int j = 0; j < Data.windowSize; j++) {
-				String label = window.instances.instance(j).stringValue(classAttr);
+			for (int j = fromIndex; j < fromIndex + Data.windowSize; j++) {
+				String label = fromRecording ?
+						classValues.get(this.recording.getLabels()[j]) :
+						this.getInstances().instance(j).stringValue(
+								this.getInstances().classAttribute());
 				int value = votingMap.get(label);
 				votingMap.put(label, value+1);
 			}
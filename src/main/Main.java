@@ -3,9 +3,8 @@ package main;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.swing.JButton;
@@ -14,37 +13,43 @@ import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
-import org.apache.commons.math3.linear.ArrayRealVector;
 import org.jfree.ui.ApplicationFrame;
 import org.jfree.ui.RefineryUtilities;
 
 import weka.core.FastVector;
+import codebook.ActivationCache;
 import codebook.Codebook;
 import codebook.CodebookFactory;
+import classifier.CascadeClassifier;
+import classifier.ParallelFileClassifier;
+import classifier.ParallelFileClassifier.FileResult;
+import classifier.ParallelFileClassifier.FileTask;
 import classifier.ClassifierFactory;
 import classifier.CodebookClassifier;
-import data.Data;
+import data.CorpusLoader;
 import data.FrameSet;
 import data.LabeledFrameSet;
 import data.PersonData;
 import data.WalkData;
+import metrics.Metrics;
 
 public class Main {
 
-	/**
-	 * FilenameFilter selecting CSV filenames.
-	 */
-	public static class CSVFilter implements FilenameFilter {
-
-		@Override
-		public boolean accept(File dir, String name) {
-			return name.toLowerCase().endsWith(".csv");
-		}
-		
-	}
-	
 	public static void main(String[] args) throws Exception {
 		long start = System.nanoTime();
+		//Metrics are only recorded with -Dmetrics=true
+		if (Metrics.isEnabled()) {
+			Metrics.writeOnExit(new File(
+					System.getProperty("metrics.file", "metrics.prom")));
+			if (System.getProperty("metrics.port") != null) {
+				Metrics.serve(Integer.getInteger("metrics.port"));
+			}
+		}
+
+		//Activations are also kept on disk, frames activated with the same
+		//codebook in an earlier run are not solved again
+		ActivationCache.setDefault(new ActivationCache(
+				new File("Project/activations"), 64L << 20));
 
 		Main.visualize();
 		
@@ -59,20 +64,33 @@ public class Main {
 		final ApplicationFrame frame = new ApplicationFrame("MLII Project");
 		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		
-		final LabeledFrameSet walkLabeled = 
-				Main.getLabeledWalkFrameSet("Project/labeled_train");
 		//Get codebook
 		final Codebook walkCodebook = CodebookFactory.getWalkCodebook();
+		//Read the classifiers, or train them if the codebooks or the 
+		//labeled data changed
 		final CodebookClassifier classifier = 
 				ClassifierFactory.
-				createWalkClassifier(walkCodebook, walkLabeled);
+				getWalkClassifier(walkCodebook, "Project/labeled_train");
 		
-		final LabeledFrameSet personLabeled =
-				Main.getLabeledPersonFrameSet("Project/labeled_train");
 		final Codebook personCodebook = CodebookFactory.getPersonCodebook();
 		final CodebookClassifier personClassifier =
 				ClassifierFactory.
-				createPersonClassifier(personCodebook, personLabeled);
+				getPersonClassifier(personCodebook, "Project/labeled_train");
+		final CascadeClassifier cascade = 
+				new CascadeClassifier(classifier, personClassifier, true);
+		//The filtered files are written in the background, finish them
+		//before the application exits. The frame exits from its own
+		//window listener, so this is done in a shutdown hook.
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					cascade.close();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}));
 
 		JButton button = new JButton("Browse...");
 		button.addActionListener( new ActionListener() {
@@ -93,21 +111,29 @@ public class Main {
 				if (result == JFileChooser.APPROVE_OPTION) {
 					currentDirectory = fileChooser.getCurrentDirectory();
 					File[] files = fileChooser.getSelectedFiles();
-					for (File file : files) {
-						System.out.println(
-								"Classifying: " + file.getName() + "...");
-						try {
-							Main.writeFilteredWalkFile(classifier,file);
-							File filteredFile = new File(
-									"Project/filtered_"+
-											file.getParentFile().getName()+
-											"/filtered_"+file.getName());
-							personClassifier.classifyFile(filteredFile);
-						} catch (Exception e1) {
+					System.out.println(
+							"Classifying " + files.length + " files...");
+					List<FileResult> results;
+					try {
+						results = ParallelFileClassifier.getDefault().classify(
+								Arrays.asList(files), new FileTask() {
+							@Override
+							public String classify(File file) 
+									throws Exception {
+								return cascade.classifyFile(file);
+							}
+						});
+					} catch (InterruptedException e1) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+					for (FileResult fileResult : results) {
+						if (!fileResult.isSuccessful() || 
+								fileResult.getLabel() == null) {
 							JOptionPane.showMessageDialog(
 									frame,
 									"File could not be processed",
-									file.getName(),
+									fileResult.getFile().getName(),
 									JOptionPane.ERROR_MESSAGE);
 						}
 					}
@@ -123,23 +149,22 @@ public class Main {
 	}
 	
 	private static void labelTestData(final String folder) throws Exception {
-		//Read all test data
-		LabeledFrameSet walkLabeled = 
-				Main.getLabeledWalkFrameSet("Project/labeled_train");
 		//Get codebook
 		Codebook walkCodebook = CodebookFactory.getWalkCodebook();
 		CodebookClassifier classifier = 
 				ClassifierFactory.
-				createWalkClassifier(walkCodebook, walkLabeled);
-		Main.writeFilteredWalkData(classifier,folder);
+				getWalkClassifier(walkCodebook, "Project/labeled_train");
 		
-		LabeledFrameSet personLabeled =
-				Main.getLabeledPersonFrameSet("Project/labeled_train");
 		Codebook personCodebook = CodebookFactory.getPersonCodebook();
 		CodebookClassifier personClassifier =
 				ClassifierFactory.
-				createPersonClassifier(personCodebook, personLabeled);
-		personClassifier.classify("Project/filtered_test");
+				getPersonClassifier(personCodebook, "Project/labeled_train");
+		//Walking frames go straight to the person classifier, the filtered
+		//files are still written in the background
+		CascadeClassifier cascade = 
+				new CascadeClassifier(classifier, personClassifier, true);
+		cascade.classify(folder);
+		cascade.close();
 	}
 	
 	private static void filterAndEvaluateCodebooks() throws Exception {
@@ -172,91 +197,59 @@ public class Main {
 		personClassifier.evaluate(personLabeled, "person", classValues);
 	}
 	
-	private static FrameSet getPersonFrameSet(final String folderName) {
-		final File folder = new File(folderName);
-		//Get all CSV files
-		List<ArrayRealVector> frames = new ArrayList<ArrayRealVector>();
-		for (File file : folder.listFiles(new Main.CSVFilter())) {
-			try {
-				Data d = new PersonData();
-				d.readCSV(file);
-				frames.addAll(d.toArrayRealVector());
-			} catch (IOException e) {
-				//Continue to the next file with empty files
-			} catch (RuntimeException e) {
-				//Continue to the next file if no data is available
-			}
-		}
-		return new FrameSet(frames);
+	private static FrameSet getPersonFrameSet(final String folderName)
+			throws IOException {
+		//Frames of all CSV files, parsed only if the store is out of date
+		return CorpusLoader.getDefault().loadUnlabeled(folderName,
+				Main.getStoreFile(new File(folderName), "person"),
+				PersonData.class);
 	}
 	
 	private static LabeledFrameSet getLabeledPersonFrameSet(
-			final String folderName) {
-		final File folder = new File(folderName);
-		//Get all CSV files
-		List<ArrayRealVector> frames = new ArrayList<ArrayRealVector>();
-		List<String> labels = new ArrayList<String>();
-		for (File file : folder.listFiles(new Main.CSVFilter())) {
-			try {
-				Data d = new PersonData();
-				d.readCSV(file);
-				frames.addAll(d.toArrayRealVector());
-				labels.addAll(d.getLabels());
-			} catch (IOException e) {
-				//Continue to the next file with empty files
-				continue;
-			}
-		}
-		return new LabeledFrameSet(frames, labels);
+			final String folderName) throws IOException {
+		//Files are parsed in parallel, once per run
+		return CorpusLoader.getDefault().loadLabeled(folderName,
+				PersonData.class);
 	}
 	
-	private static FrameSet getWalkFrameSet(final String folderName) {
-		final File folder = new File(folderName);
-		//Get all CSV files
-		List<ArrayRealVector> frames = new ArrayList<ArrayRealVector>();
-		for (File file : folder.listFiles(new Main.CSVFilter())) {
-			try {
-				Data d = new WalkData();
-				d.readCSV(file);
-				frames.addAll(d.toArrayRealVector());
-			} catch (IOException e) {
-				//Continue to the next file with empty files
-			}
-		}
-		return new FrameSet(frames);
+	private static FrameSet getWalkFrameSet(final String folderName)
+			throws IOException {
+		//Frames of all CSV files, parsed only if the store is out of date
+		return CorpusLoader.getDefault().loadUnlabeled(folderName,
+				Main.getStoreFile(new File(folderName), "walk"),
+				WalkData.class);
+	}
+	
+	/**
+	 * Frame stores are kept in Project/frames, one per folder and data type.
+	 */
+	private static File getStoreFile(final File folder, final String type) {
+		return new File("Project/frames/" + folder.getName() + "_" + type
+				+ ".frames");
 	}
 	
 	private static LabeledFrameSet getLabeledWalkFrameSet(
-			final String folderName) {
-		final File folder = new File(folderName);
-		//Get all CSV files
-		List<ArrayRealVector> frames = new ArrayList<ArrayRealVector>();
-		List<String> labels = new ArrayList<String>();
-		for (File file : folder.listFiles(new Main.CSVFilter())) {
-			try {
-				Data d = new WalkData();
-				d.readCSV(file);
-				frames.addAll(d.toArrayRealVector());
-				labels.addAll(d.getLabels());
-			} catch (IOException e) {
-				//Continue to the next file with empty files
-				continue;
-			}
-		}
-		return new LabeledFrameSet(frames, labels);
+			final String folderName) throws IOException {
+		//Files are parsed in parallel, once per run
+		return CorpusLoader.getDefault().loadLabeled(folderName,
+				WalkData.class);
 	}
 	
 	private static void writeFilteredWalkData(
-			CodebookClassifier classifier, String folderName)
+			final CodebookClassifier classifier, String folderName)
 			throws Exception {
 		System.out.println("Filtering walk data...");
-		File folder = new File(folderName);
-		for (File file : folder.listFiles(new Main.CSVFilter())) {
-			try {
+		List<FileResult> results = ParallelFileClassifier.getDefault()
+				.classifyFolder(folderName, new FileTask() {
+			@Override
+			public String classify(File file) throws Exception {
 				Main.writeFilteredWalkFile(classifier, file);
-			} catch (Exception e) {
-				//Continue to the next file with empty files
-				continue;
+				return null;
+			}
+		});
+		for (FileResult result : results) {
+			if (!result.isSuccessful()) {
+				System.out.println("Could not filter " + result);
 			}
 		}
 	}
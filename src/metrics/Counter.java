@@ -0,0 +1,51 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count that only goes up, like the number of frames processed.
+ *
+ */
+public final class Counter extends Metric {
+
+	private final AtomicLong count = new AtomicLong();
+
+	Counter(String name, String help) {
+		super(name, help);
+	}
+
+	public void increment() {
+		if (Metrics.enabled) {
+			this.count.incrementAndGet();
+		}
+	}
+
+	public void add(long amount) {
+		if (Metrics.enabled) {
+			this.count.addAndGet(amount);
+		}
+	}
+
+	public long getCount() {
+		return this.count.get();
+	}
+
+	@Override
+	void reset() {
+		this.count.set(0);
+	}
+
+	@Override
+	void writeJson(StringBuilder out) {
+		out.append("{\"type\":\"counter\",\"count\":").append(getCount())
+				.append('}');
+	}
+
+	@Override
+	void writePrometheus(StringBuilder out) {
+		writePrometheusHeader(out, "counter");
+		// Text format 0.0.4 needs the sample named exactly like its family.
+		out.append(getName()).append(' ').append(getCount())
+				.append('\n');
+	}
+}
@@ -0,0 +1,149 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non-negative values, like the number of iterations of a
+ * solve or the duration of a stage.
+ *
+ * Values are counted in buckets that double in width: bucket 0 holds 0,
+ * bucket i holds the values from 2^(i-1) up to 2^i - 1. Recording a value is
+ * a few atomic additions, without locks or allocation. Percentiles are
+ * estimated as the upper bound of their bucket.
+ *
+ */
+public class Histogram extends Metric {
+
+	private static final int numberOfBuckets = 64;
+
+	private final AtomicLongArray buckets =
+			new AtomicLongArray(numberOfBuckets);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	// Exported values are recorded values times this unit.
+	private final double unit;
+
+	Histogram(String name, String help, double unit) {
+		super(name, help);
+		this.unit = unit;
+	}
+
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 */
+	public void record(long value) {
+		if (!Metrics.enabled) {
+			return;
+		}
+		value = Math.max(0, value);
+		this.buckets.incrementAndGet(bucket(value));
+		this.count.incrementAndGet();
+		this.sum.addAndGet(value);
+		long current;
+		while (value > (current = this.max.get())
+				&& !this.max.compareAndSet(current, value)) {
+			// Another thread raised the maximum meanwhile, try again.
+		}
+	}
+
+	public long getCount() {
+		return this.count.get();
+	}
+
+	/**
+	 * @return The sum of all values, in the exported unit.
+	 */
+	public double getSum() {
+		return this.sum.get() * this.unit;
+	}
+
+	/**
+	 * @return The largest value, in the exported unit.
+	 */
+	public double getMax() {
+		return this.max.get() * this.unit;
+	}
+
+	/**
+	 * @return The mean value, in the exported unit.
+	 */
+	public double getMean() {
+		long n = getCount();
+		return n == 0 ? 0 : getSum() / n;
+	}
+
+	/**
+	 * @param fraction	Fraction of the values, between 0 and 1.
+	 * @return	Upper bound of the value below which the fraction of the
+	 * 			values lies, in the exported unit.
+	 */
+	public double getPercentile(double fraction) {
+		long n = getCount();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(fraction * n);
+		long seen = 0;
+		for (int i = 0; i < numberOfBuckets; i++) {
+			seen += this.buckets.get(i);
+			if (seen >= Math.max(1, rank)) {
+				return Math.min(upperBound(i), this.max.get()) * this.unit;
+			}
+		}
+		return getMax();
+	}
+
+	@Override
+	void reset() {
+		for (int i = 0; i < numberOfBuckets; i++) {
+			this.buckets.set(i, 0);
+		}
+		this.count.set(0);
+		this.sum.set(0);
+		this.max.set(0);
+	}
+
+	@Override
+	void writeJson(StringBuilder out) {
+		out.append("{\"type\":\"histogram\",\"count\":").append(getCount())
+				.append(",\"sum\":").append(getSum())
+				.append(",\"mean\":").append(getMean())
+				.append(",\"p50\":").append(getPercentile(0.5))
+				.append(",\"p90\":").append(getPercentile(0.9))
+				.append(",\"p99\":").append(getPercentile(0.99))
+				.append(",\"max\":").append(getMax()).append('}');
+	}
+
+	@Override
+	void writePrometheus(StringBuilder out) {
+		writePrometheusHeader(out, "histogram");
+		// Cumulative buckets up to the largest one in use.
+		int last = bucket(this.max.get());
+		long cumulative = 0;
+		for (int i = 0; i <= last; i++) {
+			cumulative += this.buckets.get(i);
+			out.append(getName()).append("_bucket{le=\"")
+					.append(upperBound(i) * this.unit).append("\"} ")
+					.append(cumulative).append('\n');
+		}
+		out.append(getName()).append("_bucket{le=\"+Inf\"} ")
+				.append(getCount()).append('\n');
+		out.append(getName()).append("_sum ").append(getSum()).append('\n');
+		out.append(getName()).append("_count ").append(getCount())
+				.append('\n');
+	}
+
+	private static int bucket(long value) {
+		return Math.min(numberOfBuckets - 1,
+				64 - Long.numberOfLeadingZeros(value));
+	}
+
+	/**
+	 * @return The largest value in bucket i.
+	 */
+	private static long upperBound(int i) {
+		return i >= 63 ? Long.MAX_VALUE : (1L << i) - 1;
+	}
+}
@@ -0,0 +1,44 @@
+package metrics;
+
+/**
+ * A named metric that can write itself in the export formats.
+ *
+ */
+abstract class Metric {
+
+	private final String name;
+	private final String help;
+
+	Metric(String name, String help) {
+		this.name = name;
+		this.help = help;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public String getHelp() {
+		return this.help;
+	}
+
+	abstract void reset();
+
+	/**
+	 * Appends the metric as a JSON object.
+	 */
+	abstract void writeJson(StringBuilder out);
+
+	/**
+	 * Appends the metric in the Prometheus text format.
+	 */
+	abstract void writePrometheus(StringBuilder out);
+
+	void writePrometheusHeader(StringBuilder out, String type) {
+		out.append("# HELP ").append(this.name).append(' ')
+				.append(this.help.replace("\\", "\\\\").replace("\n", "\\n"))
+				.append('\n');
+		out.append("# TYPE ").append(this.name).append(' ').append(type)
+				.append('\n');
+	}
+}
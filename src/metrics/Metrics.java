@@ -0,0 +1,215 @@
+package metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import util.DaemonThreadFactory;
+
+/**
+ * Registry of the metrics of the pipeline: timers per stage, histograms and
+ * counters.
+ *
+ * Metrics are disabled unless the system property metrics is true or
+ * setEnabled is called. While disabled, recording is a single check of a
+ * flag, so metrics are meant to be kept in static fields at the places they
+ * are recorded:
+ *
+ * <pre>
+ * private static final Timer parseTimer =
+ * 		Metrics.timer("mlii_parse_seconds", "Time to parse a CSV file.");
+ * </pre>
+ *
+ * The metrics can be exported as JSON or in the Prometheus text format, to
+ * a file or over HTTP.
+ *
+ */
+public final class Metrics {
+
+	private static final Charset utf8 = Charset.forName("UTF-8");
+
+	static volatile boolean enabled = Boolean.getBoolean("metrics");
+
+	private static final ConcurrentMap<String, Metric> registry =
+			new ConcurrentHashMap<String, Metric>();
+
+	private Metrics() {
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(boolean enabled) {
+		Metrics.enabled = enabled;
+	}
+
+	/**
+	 * Returns the counter with the given name, creating it if needed.
+	 */
+	public static Counter counter(String name, String help) {
+		return register(new Counter(name, help), Counter.class);
+	}
+
+	/**
+	 * Returns the histogram of plain values with the given name, creating it
+	 * if needed.
+	 */
+	public static Histogram histogram(String name, String help) {
+		return register(new Histogram(name, help, 1), Histogram.class);
+	}
+
+	/**
+	 * Returns the timer with the given name, creating it if needed.
+	 */
+	public static Timer timer(String name, String help) {
+		return register(new Timer(name, help), Timer.class);
+	}
+
+	private static <T extends Metric> T register(T metric, Class<T> type) {
+		Metric existing = registry.putIfAbsent(metric.getName(), metric);
+		if (existing == null) {
+			return metric;
+		}
+		if (existing.getClass() != type) {
+			throw new IllegalArgumentException("Metric " + metric.getName()
+					+ " is already registered as another type.");
+		}
+		return type.cast(existing);
+	}
+
+	/**
+	 * Sets all metrics back to zero.
+	 */
+	public static void reset() {
+		for (Metric metric : registry.values()) {
+			metric.reset();
+		}
+	}
+
+	/**
+	 * @return All metrics as a JSON object, keyed by name.
+	 */
+	public static String toJson() {
+		StringBuilder out = new StringBuilder("{");
+		String separator = "\n";
+		for (Metric metric : sorted()) {
+			out.append(separator).append("  \"").append(metric.getName())
+					.append("\":");
+			metric.writeJson(out);
+			separator = ",\n";
+		}
+		return out.append("\n}\n").toString();
+	}
+
+	/**
+	 * @return All metrics in the Prometheus text format.
+	 */
+	public static String toPrometheus() {
+		StringBuilder out = new StringBuilder();
+		for (Metric metric : sorted()) {
+			metric.writePrometheus(out);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Writes all metrics to a file, as JSON if its name ends in .json and in
+	 * the Prometheus text format otherwise.
+	 *
+	 * @throws IOException
+	 */
+	public static void writeTo(File file) throws IOException {
+		String text = file.getName().endsWith(".json") ?
+				toJson() : toPrometheus();
+		OutputStream output = new FileOutputStream(file);
+		try {
+			output.write(text.getBytes(utf8));
+		} finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * Writes all metrics to the file when the application exits.
+	 */
+	public static void writeOnExit(final File file) {
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					writeTo(file);
+				} catch (IOException e) {
+					System.err.println("Could not write metrics to " + file
+							+ ": " + e.getMessage());
+				}
+			}
+		}, "metrics-writer"));
+	}
+
+	/**
+	 * Serves the metrics over HTTP on the local host: /metrics in the
+	 * Prometheus text format and /metrics.json as JSON.
+	 *
+	 * @param port	The port to listen on.
+	 * @return The server, which runs until it is stopped or the application
+	 * 			exits.
+	 * @throws IOException	If the port cannot be opened.
+	 */
+	public static HttpServer serve(int port) throws IOException {
+		final HttpServer server = HttpServer.create(
+				new InetSocketAddress("localhost", port), 0);
+		server.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				boolean json = exchange.getRequestURI().getPath()
+						.endsWith(".json");
+				byte[] body = (json ? toJson() : toPrometheus())
+						.getBytes(utf8);
+				exchange.getResponseHeaders().set("Content-Type", json ?
+						"application/json" : "text/plain; version=0.0.4");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream output = exchange.getResponseBody();
+				try {
+					output.write(body);
+				} finally {
+					output.close();
+				}
+			}
+		});
+		// The default executor handles requests on the server thread. That
+		// thread is a daemon if the thread starting the server is one, so
+		// serving never keeps the application alive.
+		Thread starter = new DaemonThreadFactory("metrics").newThread(
+				new Runnable() {
+					@Override
+					public void run() {
+						server.start();
+					}
+				});
+		starter.start();
+		try {
+			starter.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return server;
+	}
+
+	private static List<Metric> sorted() {
+		return new ArrayList<Metric>(
+				new TreeMap<String, Metric>(registry).values());
+	}
+}
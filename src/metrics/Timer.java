@@ -0,0 +1,39 @@
+package metrics;
+
+/**
+ * Distribution of the durations of a stage, exported in seconds.
+ *
+ * <pre>
+ * long start = timer.start();
+ * ...
+ * timer.stop(start);
+ * </pre>
+ *
+ * While metrics are disabled, start returns 0 without reading the clock and
+ * stop does nothing.
+ *
+ */
+public final class Timer extends Histogram {
+
+	Timer(String name, String help) {
+		super(name, help, 1e-9);
+	}
+
+	/**
+	 * @return The start time to pass to stop.
+	 */
+	public long start() {
+		return Metrics.enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Records the time since start.
+	 *
+	 * @param start	Value returned by start.
+	 */
+	public void stop(long start) {
+		if (Metrics.enabled && start != 0) {
+			this.record(System.nanoTime() - start);
+		}
+	}
+}
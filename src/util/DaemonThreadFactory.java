@@ -0,0 +1,36 @@
+package util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the daemon threads of the worker pools, so an idle pool never
+ * keeps the application alive.
+ *
+ * Threads are named after the pool and numbered, for instance activation-1-2
+ * for the second thread of the first activation pool.
+ *
+ */
+public final class DaemonThreadFactory implements ThreadFactory {
+
+	private static final AtomicInteger poolCounter = new AtomicInteger();
+
+	private final String name;
+	private final int poolNumber = poolCounter.incrementAndGet();
+	private final AtomicInteger threadCounter = new AtomicInteger();
+
+	/**
+	 * @param name	Name of the pool, the threads are named after it.
+	 */
+	public DaemonThreadFactory(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public Thread newThread(Runnable runnable) {
+		Thread thread = new Thread(runnable, this.name + "-" + this.poolNumber
+				+ "-" + this.threadCounter.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
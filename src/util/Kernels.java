@@ -0,0 +1,181 @@
+package util;
+
+/**
+ * Primitive kernels over flat double arrays, shared by the hot math paths of
+ * the codebook, the frame sets and the classifiers.
+ *
+ * The loops are plain counted loops over arrays with offsets, without
+ * virtual calls or temporary vectors, which the JIT compiles to tight code
+ * and vectorizes where it can. Element-wise kernels like axpy vectorize;
+ * reductions like dot sum in index order, so they give exactly the same
+ * result as the loops they replace.
+ *
+ */
+public final class Kernels {
+
+	// Rows per block of gemmTransposed, so a block of rows of both
+	// matrices stays in cache.
+	private static final int blockSize = 32;
+
+	private Kernels() {
+	}
+
+	/**
+	 * @return The dot product of a[aOffset..aOffset+length) and
+	 * 			b[bOffset..bOffset+length).
+	 */
+	public static double dot(double[] a, int aOffset, double[] b, int bOffset,
+			int length) {
+		double sum = 0;
+		for (int i = 0; i < length; i++) {
+			sum += a[aOffset + i] * b[bOffset + i];
+		}
+		return sum;
+	}
+
+	/**
+	 * y[yOffset..yOffset+length) += factor * x[xOffset..xOffset+length).
+	 */
+	public static void axpy(double factor, double[] x, int xOffset, double[] y,
+			int yOffset, int length) {
+		for (int i = 0; i < length; i++) {
+			y[yOffset + i] += factor * x[xOffset + i];
+		}
+	}
+
+	/**
+	 * y = A*x, with A a row-major rows x columns matrix.
+	 */
+	public static void gemv(double[] a, int rows, int columns, double[] x,
+			double[] y) {
+		for (int row = 0; row < rows; row++) {
+			y[row] = dot(a, row*columns, x, 0, columns);
+		}
+	}
+
+	/**
+	 * c = a*b^T, with a a row-major m x k matrix, b a row-major n x k matrix
+	 * and c a row-major m x n matrix. The product is computed block by block,
+	 * every element is the dot product of a row of a and a row of b.
+	 */
+	public static void gemmTransposed(double[] a, int m, double[] b, int n,
+			int k, double[] c) {
+		for (int i0 = 0; i0 < m; i0 += blockSize) {
+			int i1 = Math.min(i0 + blockSize, m);
+			for (int j0 = 0; j0 < n; j0 += blockSize) {
+				int j1 = Math.min(j0 + blockSize, n);
+				for (int i = i0; i < i1; i++) {
+					for (int j = j0; j < j1; j++) {
+						c[i*n + j] = dot(a, i*k, b, j*k, k);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return value shrunk towards zero by threshold, or zero if it is
+	 * 			within threshold of zero.
+	 */
+	public static double softThreshold(double value, double threshold) {
+		if (value > threshold) {
+			return value - threshold;
+		}
+		if (value < -threshold) {
+			return value + threshold;
+		}
+		return 0;
+	}
+
+	/**
+	 * @return The number of nonzero values in a[offset..offset+length).
+	 */
+	public static int countNonZeros(double[] a, int offset, int length) {
+		int count = 0;
+		for (int i = offset; i < offset + length; i++) {
+			if (a[i] != 0) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Copies the nonzero values of a[offset..offset+length) in order.
+	 *
+	 * @param indices	Receives the index of every nonzero value, relative
+	 * 					to offset.
+	 * @param values	Receives every nonzero value.
+	 * @return The number of nonzero values.
+	 */
+	public static int compress(double[] a, int offset, int length,
+			int[] indices, double[] values) {
+		int count = 0;
+		for (int i = 0; i < length; i++) {
+			double value = a[offset + i];
+			if (value != 0) {
+				indices[count] = i;
+				values[count++] = value;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return The squared Euclidean distance between a and b.
+	 */
+	public static double squaredDistance(double[] a, double[] b, int length) {
+		double sum = 0;
+		for (int i = 0; i < length; i++) {
+			double difference = a[i] - b[i];
+			sum += difference*difference;
+		}
+		return sum;
+	}
+
+	/**
+	 * @return The L1 norm of a.
+	 */
+	public static double l1Norm(double[] a) {
+		double sum = 0;
+		for (int i = 0; i < a.length; i++) {
+			sum += Math.abs(a[i]);
+		}
+		return sum;
+	}
+
+	public static double min(double[] a) {
+		double min = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < a.length; i++) {
+			min = Math.min(min, a[i]);
+		}
+		return min;
+	}
+
+	public static double max(double[] a) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < a.length; i++) {
+			max = Math.max(max, a[i]);
+		}
+		return max;
+	}
+
+	/**
+	 * Counts the values of a in equally wide buckets between min and max.
+	 * The value max goes into the last bucket.
+	 *
+	 * @return	The count of every bucket.
+	 */
+	public static int[] histogram(double[] a, double min, double max,
+			int numBuckets) {
+		int[] counts = new int[numBuckets];
+		double range = max - min;
+		for (int i = 0; i < a.length; i++) {
+			double normalized = (a[i] - min) / range;
+			int bucket = normalized == 1 ?
+					numBuckets - 1 : (int) Math.floor(normalized*numBuckets);
+			counts[bucket]++;
+		}
+		return counts;
+	}
+}
@@ -0,0 +1,96 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A bounded pool of daemon worker threads that runs a list of tasks and waits
+ * for all of them.
+ *
+ * The default pool is meant for general computations, like the proximity
+ * matrix of a codebook. Work that should not queue behind them, like
+ * activating frames, gets a pool of its own.
+ *
+ */
+public final class WorkerPool {
+
+	private static WorkerPool defaultPool;
+
+	private final int numberOfThreads;
+	private final ExecutorService executor;
+
+	/**
+	 * Creates a pool with its own worker threads.
+	 *
+	 * @param name				Name of the pool, the threads are named after
+	 * 							it.
+	 * @param numberOfThreads	Maximum number of tasks run concurrently.
+	 */
+	public WorkerPool(String name, int numberOfThreads) {
+		if (numberOfThreads < 1) {
+			throw new IllegalArgumentException(
+					"numberOfThreads should be at least 1.");
+		}
+		this.numberOfThreads = numberOfThreads;
+		this.executor = Executors.newFixedThreadPool(numberOfThreads,
+				new DaemonThreadFactory(name));
+	}
+
+	/**
+	 * Returns the pool shared by general computations. It uses one worker
+	 * thread per available core.
+	 *
+	 * @return The default worker pool.
+	 */
+	public static synchronized WorkerPool getDefault() {
+		if (defaultPool == null) {
+			defaultPool = new WorkerPool("compute",
+					Runtime.getRuntime().availableProcessors());
+		}
+		return defaultPool;
+	}
+
+	public int getNumberOfThreads() {
+		return this.numberOfThreads;
+	}
+
+	/**
+	 * Runs the tasks on the worker threads and waits until all of them are
+	 * done. If one fails or the caller is interrupted, the others are
+	 * cancelled.
+	 *
+	 * @param tasks	Tasks that write their results to memory of their own.
+	 */
+	public void invokeAll(List<Callable<Void>> tasks) {
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(
+				tasks.size());
+		for (Callable<Void> task : tasks) {
+			futures.add(this.executor.submit(task));
+		}
+
+		try {
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			cancel(futures);
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the"
+					+ " workers.", e);
+		} catch (ExecutionException e) {
+			cancel(futures);
+			throw new IllegalStateException("A worker failed.", e.getCause());
+		}
+	}
+
+	private static void cancel(List<Future<Void>> futures) {
+		for (Future<Void> future : futures) {
+			future.cancel(true);
+		}
+	}
+}